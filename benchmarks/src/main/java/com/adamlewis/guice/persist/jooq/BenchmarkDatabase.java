@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Data sources the benchmarks run against.
+ */
+public enum BenchmarkDatabase {
+  /** A stand-in handing out jOOQ mock connections, isolating the library's own overhead. */
+  NOOP {
+    @Override
+    DataSource dataSource() {
+      return new NoOpDataSource();
+    }
+  },
+  /** An embedded in-memory H2 database. */
+  H2 {
+    @Override
+    DataSource dataSource() {
+      JdbcDataSource dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+      return dataSource;
+    }
+  };
+
+  abstract DataSource dataSource();
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import javax.sql.DataSource;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.persist.Transactional;
+import org.aopalliance.intercept.MethodInvocation;
+import org.jooq.SQLDialect;
+
+/**
+ * Fixtures shared by the benchmarks.  The benchmarks live in the library's package to reach its package-private
+ * service and interceptor directly, without going through Guice AOP.
+ */
+final class BenchmarkSupport {
+  private BenchmarkSupport() {
+  }
+
+  static Injector injector(final DataSource dataSource, final boolean lazyConnections) {
+    JooqPersistModule persistModule = new JooqPersistModule();
+    if (lazyConnections) {
+      persistModule.lazyConnections();
+    }
+    return Guice.createInjector(persistModule, new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(DataSource.class).toInstance(dataSource);
+        bind(SQLDialect.class).toInstance(SQLDialect.H2);
+      }
+    });
+  }
+
+  static MethodInvocation invocation(final Callable<Object> body) {
+    return new BenchmarkInvocation(body);
+  }
+
+  private static final class BenchmarkInvocation implements MethodInvocation {
+    private static final Method METHOD;
+
+    static {
+      try {
+        METHOD = BenchmarkInvocation.class.getDeclaredMethod("transactional");
+      } catch (NoSuchMethodException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private final Callable<Object> body;
+
+    BenchmarkInvocation(final Callable<Object> body) {
+      this.body = body;
+    }
+
+    @Transactional
+    void transactional() {
+    }
+
+    @Override
+    public Method getMethod() {
+      return METHOD;
+    }
+
+    @Override
+    public Object[] getArguments() {
+      return new Object[0];
+    }
+
+    @Override
+    public Object proceed() throws Throwable {
+      return body.call();
+    }
+
+    @Override
+    public Object getThis() {
+      return this;
+    }
+
+    @Override
+    public AccessibleObject getStaticPart() {
+      return METHOD;
+    }
+  }
+}
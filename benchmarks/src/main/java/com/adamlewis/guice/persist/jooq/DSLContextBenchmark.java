@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.conf.Settings;
+import org.jooq.impl.DSL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of obtaining a {@link DSLContext} within a unit of work, compared to creating one per unit of work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DSLContextBenchmark {
+  private final Settings settings = new Settings();
+  private JooqPersistService persistService;
+  private Connection connection;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception {
+    persistService = BenchmarkSupport.injector(BenchmarkDatabase.NOOP.dataSource(), false)
+        .getInstance(JooqPersistService.class);
+    persistService.begin();
+    connection = persistService.get().configuration().connectionProvider().acquire();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    persistService.get().configuration().connectionProvider().release(connection);
+    persistService.end();
+  }
+
+  @Benchmark
+  public DSLContext serviceContext() {
+    return persistService.get();
+  }
+
+  @Benchmark
+  public DSLContext newContextPerUnitOfWork() {
+    return DSL.using(connection, SQLDialect.H2, settings);
+  }
+}
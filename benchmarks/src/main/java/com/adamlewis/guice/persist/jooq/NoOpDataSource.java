@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+
+/**
+ * {@link DataSource} stand-in handing out jOOQ mock connections that return empty results.
+ */
+final class NoOpDataSource implements DataSource {
+  @Override
+  public Connection getConnection() {
+    return new MockConnection(ctx -> new MockResult[0]);
+  }
+
+  @Override
+  public Connection getConnection(final String username, final String password) {
+    return getConnection();
+  }
+
+  @Override
+  public PrintWriter getLogWriter() {
+    return null;
+  }
+
+  @Override
+  public void setLogWriter(final PrintWriter out) {
+  }
+
+  @Override
+  public void setLoginTimeout(final int seconds) {
+  }
+
+  @Override
+  public int getLoginTimeout() {
+    return 0;
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(final Class<T> iface) throws SQLException {
+    throw new SQLException("Not a wrapper");
+  }
+
+  @Override
+  public boolean isWrapperFor(final Class<?> iface) {
+    return false;
+  }
+}
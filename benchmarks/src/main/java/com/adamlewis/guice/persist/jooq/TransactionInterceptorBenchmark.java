@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link JdbcLocalTxnInterceptor#invoke(MethodInvocation)} for outermost, joined and rolled back transactions,
+ * against the no-op data source so that only the library's overhead is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransactionInterceptorBenchmark {
+  private static final RuntimeException FAILURE = new RuntimeException("rollback", null, false, false) {
+  };
+
+  private JooqPersistService persistService;
+  private JdbcLocalTxnInterceptor interceptor;
+  private MethodInvocation succeeding;
+  private MethodInvocation failing;
+
+  @Setup
+  public void setUp() {
+    persistService = BenchmarkSupport.injector(BenchmarkDatabase.NOOP.dataSource(), false)
+        .getInstance(JooqPersistService.class);
+    interceptor = new JdbcLocalTxnInterceptor(() -> persistService);
+    succeeding = BenchmarkSupport.invocation(() -> Boolean.TRUE);
+    failing = BenchmarkSupport.invocation(() -> {
+      throw FAILURE;
+    });
+  }
+
+  @Benchmark
+  public Object outermost() throws Throwable {
+    return interceptor.invoke(succeeding);
+  }
+
+  @Benchmark
+  public Object rollback() throws Throwable {
+    try {
+      return interceptor.invoke(failing);
+    } catch (RuntimeException e) {
+      return e;
+    }
+  }
+
+  /**
+   * Transactions joining the one of an enclosing {@code @Transactional} method.
+   */
+  @State(Scope.Thread)
+  public static class Joined {
+    JooqPersistService persistService;
+
+    @Setup(Level.Iteration)
+    public void enclosingTransaction(final TransactionInterceptorBenchmark benchmark) {
+      persistService = benchmark.persistService;
+      persistService.begin();
+      persistService.getConnectionWrapper().setAutoCommit(false);
+    }
+
+    @TearDown(Level.Iteration)
+    public void endEnclosingTransaction() {
+      persistService.getConnectionWrapper().setAutoCommit(true);
+      persistService.end();
+    }
+  }
+
+  @Benchmark
+  public Object joined(final Joined enclosing) throws Throwable {
+    return interceptor.invoke(succeeding);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.Record1;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link JooqPersistService#begin()} / {@link JooqPersistService#end()}, with and without a query.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnitOfWorkBenchmark {
+  @Param({"NOOP", "H2"})
+  public BenchmarkDatabase database;
+
+  @Param({"false", "true"})
+  public boolean lazyConnections;
+
+  private JooqPersistService persistService;
+
+  @Setup
+  public void setUp() {
+    persistService = BenchmarkSupport.injector(database.dataSource(), lazyConnections)
+        .getInstance(JooqPersistService.class);
+  }
+
+  @Benchmark
+  public boolean beginEnd() {
+    persistService.begin();
+    try {
+      return persistService.isWorking();
+    } finally {
+      persistService.end();
+    }
+  }
+
+  @Benchmark
+  public Record1<Integer> beginQueryEnd() {
+    persistService.begin();
+    try {
+      return persistService.get().selectOne().fetchOne();
+    } finally {
+      persistService.end();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.BatchUpdateException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jooq.exception.DataAccessException;
+
+/**
+ * Thrown when a batch of DML collected by a {@link Batched} transaction fails to execute.
+ */
+public class BatchFlushException extends DataAccessException {
+  private static final long serialVersionUID = 1L;
+
+  private final int[] updateCounts;
+
+  BatchFlushException(final BatchUpdateException cause) {
+    super("Batched DML failed: " + cause.getMessage(), cause);
+    int[] counts = cause.getUpdateCounts();
+    this.updateCounts = null == counts ? new int[0] : counts.clone();
+  }
+
+  /**
+   * Returns the outcome of each statement of the failed batch as reported by the driver: an update count,
+   * {@link Statement#SUCCESS_NO_INFO} or {@link Statement#EXECUTE_FAILED}.  Drivers that stop at the first failure
+   * only report the statements before it.
+   */
+  public int[] getUpdateCounts() {
+    return updateCounts.clone();
+  }
+
+  /**
+   * @return the positions within the batch of the statements that failed, as far as the driver reports them
+   */
+  public List<Integer> getFailedStatements() {
+    List<Integer> failed = new ArrayList<Integer>();
+    for (int i = 0; i < updateCounts.length; i++) {
+      if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+        failed.add(i);
+      }
+    }
+    if (failed.isEmpty()) {
+      // the driver stopped at the first failure
+      failed.add(updateCounts.length);
+    }
+    return Collections.unmodifiableList(failed);
+  }
+
+  /**
+   * Returns the exception to report for a failure of a batched transaction: a {@link BatchFlushException} if jOOQ
+   * failed to execute a statement because the batch before it failed, the exception itself otherwise.
+   */
+  static Throwable translate(final Throwable e) {
+    if (!(e instanceof DataAccessException) || e instanceof BatchFlushException) {
+      return e;
+    }
+    for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+      if (cause instanceof BatchUpdateException) {
+        return new BatchFlushException((BatchUpdateException) cause);
+      }
+      if (cause.getCause() == cause) {
+        break;
+      }
+    }
+    return e;
+  }
+}
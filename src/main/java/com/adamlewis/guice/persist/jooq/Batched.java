@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Batches the DML of a {@link com.google.inject.persist.Transactional} method (or all such methods of a class).
+ * <p>
+ * While the transaction begun by the annotated method is active, consecutive INSERT, UPDATE, DELETE and MERGE
+ * statements with the same SQL are collected and sent to the database as one JDBC batch.  A batch is flushed when
+ * {@link #size()} statements have been collected, before any other statement runs (including every query, so reads
+ * always see the transaction's own writes), and before the transaction commits.  A failing batch is reported as a
+ * {@link BatchFlushException} carrying the outcome of each statement.
+ * <p>
+ * Batched statements report zero affected rows, so features relying on update counts, such as optimistic locking,
+ * do not work while batching.  The annotation only applies to the outermost transaction; joined transactions use
+ * whatever mode the enclosing one runs in.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Inherited
+public @interface Batched {
+  /**
+   * @return the maximum number of statements sent in one batch
+   */
+  int size() default 100;
+}
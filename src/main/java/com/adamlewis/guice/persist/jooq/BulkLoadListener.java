@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+/**
+ * Receives the progress of a {@link BulkLoader} load, one chunk at a time.
+ * <p>
+ * Callbacks run on the loading threads, concurrently for different chunks, so implementations must be thread-safe.
+ * Every method does nothing by default.
+ */
+public interface BulkLoadListener {
+  /**
+   * Listener that ignores everything.
+   */
+  BulkLoadListener NONE = new BulkLoadListener() {
+  };
+
+  /**
+   * A chunk was inserted and committed.
+   *
+   * @param chunk    position of the chunk in the input, starting at 0
+   * @param firstRow position of its first record in the input, starting at 0
+   * @param rows     number of records in the chunk
+   */
+  default void chunkLoaded(int chunk, long firstRow, int rows) {
+  }
+
+  /**
+   * A chunk failed and was rolled back; none of its records were loaded.
+   *
+   * @param chunk    position of the chunk in the input, starting at 0
+   * @param firstRow position of its first record in the input, starting at 0
+   * @param rows     number of records in the chunk
+   * @param cause    what the chunk failed with, an error as well as an exception
+   */
+  default void chunkFailed(int chunk, long firstRow, int rows, Throwable cause) {
+  }
+}
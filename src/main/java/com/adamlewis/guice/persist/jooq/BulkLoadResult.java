@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Outcome of a {@link BulkLoader} load.
+ */
+public final class BulkLoadResult {
+  private final int chunks;
+  private final long loadedRows;
+  private final List<ChunkFailure> failures;
+  private final boolean complete;
+
+  BulkLoadResult(final int chunks, final long loadedRows, final List<ChunkFailure> failures, final boolean complete) {
+    List<ChunkFailure> sorted = new ArrayList<ChunkFailure>(failures);
+    sorted.sort(Comparator.comparingInt(ChunkFailure::getChunk));
+    this.chunks = chunks;
+    this.loadedRows = loadedRows;
+    this.failures = Collections.unmodifiableList(sorted);
+    this.complete = complete;
+  }
+
+  /**
+   * @return the number of chunks that were attempted
+   */
+  public int getChunks() {
+    return chunks;
+  }
+
+  /**
+   * @return the number of records inserted by committed chunks
+   */
+  public long getLoadedRows() {
+    return loadedRows;
+  }
+
+  /**
+   * @return the failed chunks, in input order
+   */
+  public List<ChunkFailure> getFailures() {
+    return failures;
+  }
+
+  /**
+   * @return false if the load stopped before the end of the input, after a failure or an interrupt
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * @return true if the whole input was loaded
+   */
+  public boolean isSuccessful() {
+    return complete && failures.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "BulkLoadResult{chunks=" + chunks + ", loadedRows=" + loadedRows + ", failures=" + failures.size()
+        + ", complete=" + complete + '}';
+  }
+
+  /**
+   * A chunk that was rolled back.
+   */
+  public static final class ChunkFailure {
+    private final int chunk;
+    private final long firstRow;
+    private final int rows;
+    private final Throwable cause;
+
+    ChunkFailure(final int chunk, final long firstRow, final int rows, final Throwable cause) {
+      this.chunk = chunk;
+      this.firstRow = firstRow;
+      this.rows = rows;
+      this.cause = cause;
+    }
+
+    /**
+     * @return the position of the chunk in the input, starting at 0
+     */
+    public int getChunk() {
+      return chunk;
+    }
+
+    /**
+     * @return the position of the first record of the chunk in the input, starting at 0
+     */
+    public long getFirstRow() {
+      return firstRow;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    public Throwable getCause() {
+      return cause;
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jooq.Table;
+import org.jooq.TableRecord;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts large amounts of records in parallel, split into chunks that are each committed in a unit of work and
+ * transaction of their own:
+ * <pre>
+ *   BulkLoadResult result = bulkLoader.into(USER)
+ *       .commitSize(5000)
+ *       .parallelism(8)
+ *       .load(records);
+ * </pre>
+ * Each chunk is sent with jOOQ's batch API on a connection of its own, so up to {@code parallelism} connections are
+ * taken from the pool at once.  The input is read by the calling thread only as fast as chunks are loaded, so at most
+ * {@code parallelism} chunks are held in memory; records may be produced lazily, e.g. while parsing a file.
+ * <p>
+ * A failing chunk is rolled back and reported in the {@link BulkLoadResult} and to the {@link BulkLoadListener}; the
+ * load carries on with the other chunks unless {@link Load#abortOnError()} is set.  Chunks committed before a failure
+ * stay committed.  The loads run outside the calling thread's unit of work and transaction, so its deadline and
+ * statement budget do not apply, nor do the metrics of this module; each chunk's connection does count against the
+ * {@link JooqPersistModule#concurrencyLimit(ConcurrencyLimit) concurrency limit}.  Cached results reading the table
+ * are invalidated as chunks commit.
+ */
+@Singleton
+public final class BulkLoader {
+  private static final Logger logger = LoggerFactory.getLogger(BulkLoader.class);
+
+  /**
+   * Number of records committed per transaction unless another commit size is given.
+   */
+  public static final int DEFAULT_COMMIT_SIZE = 1000;
+
+  private static final AtomicInteger LOADS = new AtomicInteger();
+
+  private final JooqPersistService persistService;
+  private final ResultCache resultCache;
+
+  @Inject
+  BulkLoader(final JooqPersistService persistService, final ResultCache resultCache) {
+    this.persistService = persistService;
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Starts describing a load into the given table, by default with {@link #DEFAULT_COMMIT_SIZE} records per
+   * transaction on as many connections as there are processors.
+   */
+  public <R extends TableRecord<R>> Load<R> into(final Table<R> table) {
+    return new Load<R>(table);
+  }
+
+  /**
+   * A load into one table.
+   */
+  public final class Load<R extends TableRecord<R>> {
+    private final Table<R> table;
+    private int commitSize = DEFAULT_COMMIT_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean abortOnError;
+    private BulkLoadListener listener = BulkLoadListener.NONE;
+
+    private Load(final Table<R> table) {
+      this.table = table;
+    }
+
+    /**
+     * @param commitSize number of records inserted and committed per chunk
+     */
+    public Load<R> commitSize(final int commitSize) {
+      if (commitSize <= 0) {
+        throw new IllegalArgumentException("Commit size must be positive: " + commitSize);
+      }
+      this.commitSize = commitSize;
+      return this;
+    }
+
+    /**
+     * @param parallelism number of chunks loaded at once, each on a connection of its own
+     */
+    public Load<R> parallelism(final int parallelism) {
+      if (parallelism <= 0) {
+        throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+      }
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Stops reading the input after the first failing chunk.  Chunks already being loaded still complete.
+     */
+    public Load<R> abortOnError() {
+      this.abortOnError = true;
+      return this;
+    }
+
+    public Load<R> listener(final BulkLoadListener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    public BulkLoadResult load(final Iterable<? extends R> records) {
+      return load(records.iterator());
+    }
+
+    /**
+     * Loads the given records, returning once every chunk has been committed or rolled back.  If the calling thread
+     * is interrupted, no further chunks are started and the result is incomplete.
+     */
+    public BulkLoadResult load(final Iterator<? extends R> records) {
+      // chunks are loaded for the tenant of the calling thread
+      String tenant = persistService.currentTenant();
+      Semaphore permits = new Semaphore(parallelism);
+      AtomicLong loadedRows = new AtomicLong();
+      List<BulkLoadResult.ChunkFailure> failures =
+          Collections.synchronizedList(new ArrayList<BulkLoadResult.ChunkFailure>());
+      String threadName = "bulk-load-" + LOADS.incrementAndGet() + "-";
+      AtomicInteger threads = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism, task -> {
+        Thread thread = new Thread(task, threadName + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      int chunks = 0;
+      long rows = 0;
+      boolean complete = true;
+      try {
+        while (records.hasNext()) {
+          try {
+            permits.acquire();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete = false;
+            break;
+          }
+          if (abortOnError && !failures.isEmpty()) {
+            permits.release();
+            complete = false;
+            break;
+          }
+          List<R> chunk = new ArrayList<R>(commitSize);
+          try {
+            while (chunk.size() < commitSize && records.hasNext()) {
+              chunk.add(records.next());
+            }
+          } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+          }
+          int index = chunks++;
+          long firstRow = rows;
+          rows += chunk.size();
+          executor.execute(() -> {
+            try {
+              Throwable failure = null;
+              try {
+                loadChunk(chunk, tenant);
+                loadedRows.addAndGet(chunk.size());
+              } catch (RuntimeException | Error e) {
+                logger.debug("Loading chunk {} into {} failed", index, table.getName(), e);
+                failures.add(new BulkLoadResult.ChunkFailure(index, firstRow, chunk.size(), e));
+                failure = e;
+              }
+              // outside the try, so a failing listener neither fails a loaded chunk nor hides a failed one
+              chunkDone(index, firstRow, chunk.size(), failure);
+            } finally {
+              permits.release();
+            }
+          });
+        }
+        // waits for the chunks still being loaded
+        permits.acquireUninterruptibly(parallelism);
+      } finally {
+        executor.shutdown();
+      }
+      return new BulkLoadResult(chunks, loadedRows.get(), failures, complete);
+    }
+
+    private void chunkDone(final int index, final long firstRow, final int rows, final Throwable failure) {
+      try {
+        if (null == failure) {
+          listener.chunkLoaded(index, firstRow, rows);
+        } else {
+          listener.chunkFailed(index, firstRow, rows, failure);
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Bulk load listener failed on chunk {} of {}", index, table.getName(), e);
+      }
+    }
+
+    private void loadChunk(final List<R> chunk, final String tenant) {
+      UnitOfWorkConnectionProvider conn = persistService.newDetachedWork(false, tenant);
+      try {
+        conn.setAutoCommit(false);
+        try {
+          DSL.using(persistService.detachedConfiguration(conn)).batchInsert(chunk).execute();
+          conn.commit();
+        } catch (Throwable e) {
+          // before auto-commit is restored, which would commit the partial chunk
+          try {
+            conn.rollback();
+          } catch (Throwable rollbackFailure) {
+            e.addSuppressed(rollbackFailure);
+          }
+          throw e;
+        } finally {
+          conn.setAutoCommit(true);
+        }
+      } finally {
+        conn.close();
+      }
+      resultCache.invalidate(table);
+    }
+  }
+}
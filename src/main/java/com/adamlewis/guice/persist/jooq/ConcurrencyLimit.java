@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of units of work holding a JDBC connection at once, so that a slow database sheds load instead of
+ * piling up threads in {@code DataSource.getConnection()}.
+ * <p>
+ * Installed with {@link JooqPersistModule#concurrencyLimit(ConcurrencyLimit)}.  A unit of work takes a permit right
+ * before taking its connection and returns it with the connection.  Units of work waiting for a permit are admitted
+ * in arrival order, for at most the maximum wait; past it, or right away without a maximum wait, they are rejected
+ * with a {@link ConnectionRejectedException}.  A unit of work interrupted while waiting is not rejected: it fails with
+ * a {@link CancellationException}, and its thread stays interrupted.
+ * <p>
+ * An {@link #adaptive(int, int, long, TimeUnit) adaptive} limit moves between a minimum and a maximum number of permits:
+ * it grows by one permit after a full round of units of work that held their connection for less than the target
+ * time, and shrinks by a tenth whenever one held it for longer, i.e. when the database is slowing down.
+ * <p>
+ * A limit may be shared by several modules, which then share its permits.
+ */
+public final class ConcurrencyLimit {
+  private final AdjustablePermits permits;
+  private final int minPermits;
+  private final int maxPermits;
+  // 0 for a fixed limit
+  private final long targetHoldNanos;
+  private volatile long maxWaitNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  // guarded by lock
+  private int limit;
+  private int fastReleases;
+
+  private ConcurrencyLimit(final int minPermits, final int maxPermits, final long targetHoldNanos) {
+    if (minPermits < 1 || maxPermits < minPermits) {
+      throw new IllegalArgumentException("Invalid permits: " + minPermits + " to " + maxPermits);
+    }
+    this.permits = new AdjustablePermits(maxPermits);
+    this.minPermits = minPermits;
+    this.maxPermits = maxPermits;
+    this.targetHoldNanos = targetHoldNanos;
+    this.limit = maxPermits;
+  }
+
+  /**
+   * @param permits number of units of work that may hold a connection at once
+   */
+  public static ConcurrencyLimit fixed(final int permits) {
+    return new ConcurrencyLimit(permits, permits, 0);
+  }
+
+  /**
+   * @param minPermits    permits kept however slow the database gets
+   * @param maxPermits    permits granted while connections are held for less than the target time, the initial limit
+   * @param targetHoldTime time a unit of work is expected to hold its connection at most
+   */
+  public static ConcurrencyLimit adaptive(final int minPermits, final int maxPermits, final long targetHoldTime,
+                                          final TimeUnit unit) {
+    if (targetHoldTime <= 0) {
+      throw new IllegalArgumentException("Target hold time must be positive: " + targetHoldTime);
+    }
+    return new ConcurrencyLimit(minPermits, maxPermits, unit.toNanos(targetHoldTime));
+  }
+
+  /**
+   * Lets units of work wait up to the given time for a permit; by default they are rejected as soon as there is none.
+   *
+   * @return this limit
+   */
+  public ConcurrencyLimit maxWait(final long maxWait, final TimeUnit unit) {
+    if (maxWait < 0) {
+      throw new IllegalArgumentException("Maximum wait must not be negative: " + maxWait);
+    }
+    this.maxWaitNanos = unit.toNanos(maxWait);
+    return this;
+  }
+
+  /**
+   * @return the current number of permits
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of permits not taken, negative while a shrunk limit is still exceeded
+   */
+  public int getAvailablePermits() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * @return the number of units of work waiting for a permit, an estimate
+   */
+  public int getQueueLength() {
+    return permits.getQueueLength();
+  }
+
+  /**
+   * Takes a permit, waiting at most the maximum wait.
+   *
+   * @throws ConnectionRejectedException if no permit was available in time
+   * @throws CancellationException       if the thread was interrupted while waiting
+   */
+  void acquire(final MetricsListener metrics) {
+    long startedAt = System.nanoTime();
+    boolean admitted;
+    try {
+      // unlike tryAcquire(), a timed tryAcquire does not barge ahead of waiting threads
+      admitted = permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      CancellationException cancelled = new CancellationException("Interrupted while waiting for a connection permit");
+      cancelled.initCause(e);
+      throw cancelled;
+    }
+    if (!admitted) {
+      long waitNanos = System.nanoTime() - startedAt;
+      metrics.connectionRejected(waitNanos);
+      throw new ConnectionRejectedException("No connection permit available after "
+                                                + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms, limit is "
+                                                + getLimit());
+    }
+  }
+
+  /**
+   * Returns a permit.
+   *
+   * @param holdNanos time the connection was held, only used by an adaptive limit
+   */
+  void release(final long holdNanos) {
+    permits.release();
+    if (targetHoldNanos > 0) {
+      adapt(holdNanos);
+    }
+  }
+
+  private void adapt(final long holdNanos) {
+    lock.lock();
+    try {
+      if (holdNanos > targetHoldNanos) {
+        fastReleases = 0;
+        int reduced = Math.max(minPermits, limit - Math.max(1, limit / 10));
+        permits.reduce(limit - reduced);
+        limit = reduced;
+      } else if (++fastReleases >= limit && limit < maxPermits) {
+        fastReleases = 0;
+        limit++;
+        permits.release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Fair semaphore whose permits can be taken away.
+   */
+  private static final class AdjustablePermits extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    AdjustablePermits(final int permits) {
+      super(permits, true);
+    }
+
+    void reduce(final int reduction) {
+      if (reduction > 0) {
+        reducePermits(reduction);
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.exception.DataAccessException;
+
+/**
+ * Thrown when a unit of work is refused a JDBC connection by the {@link ConcurrencyLimit}, because too many units of
+ * work hold one already.  It is thrown before anything ran in the unit of work.
+ */
+public class ConnectionRejectedException extends DataAccessException {
+  private static final long serialVersionUID = 1L;
+
+  ConnectionRejectedException(final String message) {
+    super(message);
+  }
+}
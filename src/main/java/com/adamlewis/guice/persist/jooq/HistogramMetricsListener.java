@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link MetricsListener} keeping {@link Histogram}s in memory, for sizing pools and finding slow transactional
+ * methods.  Read the histograms periodically and hand them to the monitoring system of choice.
+ */
+public class HistogramMetricsListener implements MetricsListener {
+  private final Histogram unitOfWorkDurations = new Histogram();
+  private final Histogram queriesPerUnitOfWork = new Histogram();
+  private final Histogram connectionWaits = new Histogram();
+  private final Histogram connectionHoldTimes = new Histogram();
+  private final Histogram queryDurations = new Histogram();
+  private final Histogram nestingDepths = new Histogram();
+  private final ConcurrentMap<Method, Histogram> transactionDurations = new ConcurrentHashMap<Method, Histogram>();
+  private final ConcurrentMap<Class<? extends Throwable>, LongAdder> rollbackCauses =
+      new ConcurrentHashMap<Class<? extends Throwable>, LongAdder>();
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder rollbacks = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder overdueUnitsOfWork = new LongAdder();
+  private final LongAdder reclaimedUnitsOfWork = new LongAdder();
+  private final LongAdder rejectedConnections = new LongAdder();
+
+  @Override
+  public void unitOfWorkEnded(final long durationNanos, final int queries, final long queryNanos) {
+    unitOfWorkDurations.record(durationNanos);
+    queriesPerUnitOfWork.record(queries);
+  }
+
+  @Override
+  public void connectionAcquired(final long waitNanos) {
+    connectionWaits.record(waitNanos);
+  }
+
+  @Override
+  public void connectionReleased(final long heldNanos) {
+    connectionHoldTimes.record(heldNanos);
+  }
+
+  @Override
+  public void queryExecuted(final long durationNanos) {
+    queryDurations.record(durationNanos);
+  }
+
+  @Override
+  public void transactionCommitted(final Method method, final long durationNanos) {
+    commits.increment();
+    transactionDurations(method).record(durationNanos);
+  }
+
+  @Override
+  public void transactionRolledBack(final Method method, final long durationNanos,
+                                    final Class<? extends Throwable> cause) {
+    rollbacks.increment();
+    transactionDurations(method).record(durationNanos);
+    LongAdder count = rollbackCauses.get(cause);
+    if (null == count) {
+      rollbackCauses.putIfAbsent(cause, new LongAdder());
+      count = rollbackCauses.get(cause);
+    }
+    count.increment();
+  }
+
+  @Override
+  public void transactionRetried(final Method method, final int attempt) {
+    retries.increment();
+  }
+
+  @Override
+  public void transactionJoined(final Method method, final int depth) {
+    nestingDepths.record(depth);
+  }
+
+  @Override
+  public void connectionRejected(final long waitNanos) {
+    rejectedConnections.increment();
+  }
+
+  @Override
+  public void unitOfWorkOverdue(final long ageNanos) {
+    overdueUnitsOfWork.increment();
+  }
+
+  @Override
+  public void unitOfWorkReclaimed() {
+    reclaimedUnitsOfWork.increment();
+  }
+
+  private Histogram transactionDurations(final Method method) {
+    Histogram histogram = transactionDurations.get(method);
+    if (null == histogram) {
+      transactionDurations.putIfAbsent(method, new Histogram());
+      histogram = transactionDurations.get(method);
+    }
+    return histogram;
+  }
+
+  public Histogram getUnitOfWorkDurations() {
+    return unitOfWorkDurations;
+  }
+
+  public Histogram getQueriesPerUnitOfWork() {
+    return queriesPerUnitOfWork;
+  }
+
+  public Histogram getConnectionWaits() {
+    return connectionWaits;
+  }
+
+  public Histogram getConnectionHoldTimes() {
+    return connectionHoldTimes;
+  }
+
+  public Histogram getQueryDurations() {
+    return queryDurations;
+  }
+
+  /**
+   * @return depths of joined transactions
+   */
+  public Histogram getNestingDepths() {
+    return nestingDepths;
+  }
+
+  /**
+   * @return durations of committed and rolled back transactions by the {@code @Transactional} method that began them
+   */
+  public Map<Method, Histogram> getTransactionDurations() {
+    return Collections.unmodifiableMap(transactionDurations);
+  }
+
+  public long getCommits() {
+    return commits.sum();
+  }
+
+  public long getRollbacks() {
+    return rollbacks.sum();
+  }
+
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  public long getRejectedConnections() {
+    return rejectedConnections.sum();
+  }
+
+  public long getOverdueUnitsOfWork() {
+    return overdueUnitsOfWork.sum();
+  }
+
+  public long getReclaimedUnitsOfWork() {
+    return reclaimedUnitsOfWork.sum();
+  }
+
+  /**
+   * @return number of rollbacks by the class of the exception that caused them
+   */
+  public Map<Class<? extends Throwable>, Long> getRollbackCauses() {
+    Map<Class<? extends Throwable>, Long> causes = new ConcurrentHashMap<Class<? extends Throwable>, Long>();
+    for (Map.Entry<Class<? extends Throwable>, LongAdder> entry : rollbackCauses.entrySet()) {
+      causes.put(entry.getKey(), entry.getValue().sum());
+    }
+    return Collections.unmodifiableMap(causes);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+
+/**
+ * JDBC transaction isolation levels for {@link TransactionAttributes#isolation()}.
+ */
+public enum Isolation {
+  /**
+   * Whatever level the connection comes with from the pool.
+   */
+  DEFAULT(-1),
+  READ_UNCOMMITTED(Connection.TRANSACTION_READ_UNCOMMITTED),
+  READ_COMMITTED(Connection.TRANSACTION_READ_COMMITTED),
+  REPEATABLE_READ(Connection.TRANSACTION_REPEATABLE_READ),
+  SERIALIZABLE(Connection.TRANSACTION_SERIALIZABLE);
+
+  private final int level;
+
+  Isolation(final int level) {
+    this.level = level;
+  }
+
+  /**
+   * @return the {@link Connection} constant of this level, -1 for {@link #DEFAULT}
+   */
+  public int getLevel() {
+    return level;
+  }
+}
@@ -16,17 +16,14 @@
 
 package com.adamlewis.guice.persist.jooq;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.sql.Savepoint;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
-import com.google.inject.persist.Transactional;
-import com.google.inject.persist.UnitOfWork;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
-import org.jooq.impl.DefaultConnectionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,153 +32,281 @@ import org.slf4j.LoggerFactory;
  */
 class JdbcLocalTxnInterceptor implements MethodInterceptor {
   private static final Logger logger = LoggerFactory.getLogger(JdbcLocalTxnInterceptor.class);
-  private static final ConcurrentMap<Method, Transactional> methodsTransactionals = new ConcurrentHashMap<Method, Transactional>();
 
   private final Provider<JooqPersistService> jooqPersistServiceProvider;
-  private final Provider<UnitOfWork> unitOfWorkProvider;
+  // qualifier of the persistence unit whose methods are intercepted, null for the unqualified one
+  private final Class<? extends Annotation> unit;
 
-  @Transactional
-  private static class Internal {
-  }
-
-  // Tracks if the unit of work was begun implicitly by this transaction.
-  private final ThreadLocal<Boolean> didWeStartWork = new ThreadLocal<Boolean>();
+  // The service is a singleton, resolve it once instead of on every invocation.
+  private volatile JooqPersistService jooqPersistService;
 
   @Inject
-  public JdbcLocalTxnInterceptor(Provider<JooqPersistService> jooqPersistServiceProvider,
-                                 Provider<UnitOfWork> unitOfWorkProvider) {
+  public JdbcLocalTxnInterceptor(Provider<JooqPersistService> jooqPersistServiceProvider) {
+    this(jooqPersistServiceProvider, null);
+  }
+
+  JdbcLocalTxnInterceptor(final Provider<JooqPersistService> jooqPersistServiceProvider,
+                          final Class<? extends Annotation> unit) {
     this.jooqPersistServiceProvider = jooqPersistServiceProvider;
-    this.unitOfWorkProvider = unitOfWorkProvider;
+    this.unit = unit;
   }
 
   public Object invoke(final MethodInvocation methodInvocation) throws Throwable {
-    UnitOfWork unitOfWork = unitOfWorkProvider.get();
-    JooqPersistService jooqProvider = jooqPersistServiceProvider.get();
+    TransactionPlan plan = plan(methodInvocation);
+    Class<? extends Annotation> planned = plan.getUnit();
+    if (ShardRouter.Routed.class == planned) {
+      // fails if the method is called outside a routed unit of work
+      planned = ShardRouter.currentUnit();
+    }
+    if (planned != unit) {
+      // a method of another persistence unit, its own interceptor takes care of it
+      return methodInvocation.proceed();
+    }
+    JooqPersistService jooqProvider = persistService();
+    UnitOfWorkConnectionProvider conn = jooqProvider.getConnectionWrapper();
 
+    // Allow 'joining' of transactions if there is an enclosing @Transactional method.
+    if (null != conn && !conn.getAutoCommit()) {
+      if (plan.getPropagation() == Propagation.REQUIRES_NEW) {
+        return inNewUnitOfWork(jooqProvider, conn, plan, methodInvocation);
+      }
+      if (conn.inReadOnlyTransaction() && !plan.isReadOnly()) {
+        throw new IllegalStateException("Read-write transactional method " + methodInvocation.getMethod()
+                + " cannot join a read-only transaction");
+      }
+      if (!conn.isTimed()) {
+        return joinTransaction(conn, plan, methodInvocation);
+      }
+      conn.getMetrics().transactionJoined(methodInvocation.getMethod(), conn.enterTransactional());
+      try {
+        return joinTransaction(conn, plan, methodInvocation);
+      } finally {
+        conn.exitTransactional();
+      }
+    }
+
+    return inOutermostTransaction(jooqProvider, conn, plan, methodInvocation);
+  }
+
+  private static Object inOutermostTransaction(final JooqPersistService jooqProvider, UnitOfWorkConnectionProvider conn,
+                                               final TransactionPlan plan, final MethodInvocation methodInvocation)
+          throws Throwable {
     // Should we start a unit of work?
-    if (!jooqProvider.isWorking()) {
-      unitOfWork.begin();
-      didWeStartWork.set(true);
+    boolean didWeStartWork = false;
+    if (null == conn) {
+      jooqProvider.begin(plan.isReadOnly());
+      didWeStartWork = true;
+      conn = jooqProvider.getConnectionWrapper();
+      if (null != conn.getTrace()) {
+        conn.getTrace().setMethod(methodInvocation.getMethod());
+      }
     }
 
-    Transactional transactional = readTransactionMetadata(methodInvocation);
-    DefaultConnectionProvider conn = jooqProvider.getConnectionWrapper();
+    try {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          return inTransaction(conn, plan, methodInvocation);
+        } catch (Throwable e) {
+          if (!plan.retriesOn(e, attempt)) {
+            throw e;
+          }
+          retrying(conn, methodInvocation, plan, attempt, e);
+        }
+      }
+    } finally {
+      if (didWeStartWork) {
+        jooqProvider.end();
+      }
+    }
+  }
 
-    // Allow 'joining' of transactions if there is an enclosing @Transactional method.
-    if (!conn.getAutoCommit()) {
+  /**
+   * Suspends the unit of work of this thread and runs the method in a unit of work of its own.
+   */
+  private static Object inNewUnitOfWork(final JooqPersistService jooqProvider,
+                                        final UnitOfWorkConnectionProvider suspended, final TransactionPlan plan,
+                                        final MethodInvocation methodInvocation) throws Throwable {
+    logger.debug("Suspending unit of work for this thread");
+    jooqProvider.detach();
+    try {
+      return inOutermostTransaction(jooqProvider, null, plan, methodInvocation);
+    } finally {
+      logger.debug("Resuming unit of work for this thread");
+      jooqProvider.attach(suspended);
+    }
+  }
+
+  private static Object joinTransaction(final UnitOfWorkConnectionProvider conn, final TransactionPlan plan,
+                                        final MethodInvocation methodInvocation) throws Throwable {
+    if (plan.getPropagation() != Propagation.NESTED || conn.inReadOnlyTransaction()) {
       return methodInvocation.proceed();
     }
 
+    logger.debug("Setting savepoint for this thread");
+    Savepoint savepoint = conn.setSavepoint();
+    Object result;
+    try {
+      result = methodInvocation.proceed();
+    } catch (Throwable t) {
+      // the enclosing transaction may be batching
+      Throwable e = BatchFlushException.translate(t);
+      try {
+        if (plan.rollsBackOn(e)) {
+          logger.debug("Rolling back to savepoint for this thread");
+          conn.rollback(savepoint);
+        } else {
+          conn.releaseSavepoint(savepoint);
+        }
+      } catch (RuntimeException savepointFailure) {
+        e.addSuppressed(savepointFailure);
+      }
+      throw e;
+    }
+    conn.releaseSavepoint(savepoint);
+    return result;
+  }
+
+  private static Object inTransaction(final UnitOfWorkConnectionProvider conn, final TransactionPlan plan,
+                                      final MethodInvocation methodInvocation) throws Throwable {
+    if (plan.isReadOnly() && !conn.isReadOnly()) {
+      // a unit of work begun elsewhere, e.g. by the PersistFilter, keeps its connection
+      conn.setReadOnlyTransaction(true);
+    }
+    if (plan.getIsolation() != -1) {
+      conn.setIsolation(plan.getIsolation());
+    }
     logger.debug("Disabling JDBC auto commit for this thread");
     conn.setAutoCommit(false);
+    if (plan.getBatchSize() > 0) {
+      conn.setBatchSize(plan.getBatchSize());
+    }
+    if (plan.hasLimits()) {
+      conn.setLimits(plan.getTimeoutNanos() > 0 ? System.nanoTime() + plan.getTimeoutNanos() : 0,
+                     plan.getMaxStatements());
+    }
+    long startedAt = 0;
+    if (conn.isTimed()) {
+      conn.enterTransactional();
+      startedAt = System.nanoTime();
+    }
 
     Object result;
-
     try {
       result = methodInvocation.proceed();
-    } catch (Exception e) {
+    } catch (Throwable t) {
+      // a statement may have flushed a failed batch of earlier statements
+      Throwable e = plan.getBatchSize() > 0 ? BatchFlushException.translate(t) : t;
+
       //commit transaction only if rollback didn't occur
-      if (rollbackIfNecessary(transactional, e, conn)) {
-        logger.debug("Committing JDBC transaction");
-        conn.commit();
+      if (plan.rollsBackOn(e)) {
+        logger.debug("Rolling back JDBC transaction for this thread");
+        try {
+          rollbackAndRestoreAutoCommit(conn, e);
+        } finally {
+          transactionEnded(conn, methodInvocation.getMethod(), startedAt, e);
+        }
+      } else {
+        commitAndRestoreAutoCommit(conn, methodInvocation.getMethod(), startedAt);
       }
 
-      logger.debug("Enabling auto commit for this thread");
-      conn.setAutoCommit(true);
-
       //propagate whatever exception is thrown anyway
       throw e;
-    } finally {
-      // Close the em if necessary (guarded so this code doesn't run unless catch fired).
-      if (null != didWeStartWork.get() && conn.getAutoCommit()) {
-        didWeStartWork.remove();
-        unitOfWork.end();
-      }
     }
 
     // everything was normal so commit the txn (do not move into try block above as it
     // interferes with the advised method's throwing semantics)
-    try {
-      logger.debug("Committing JDBC transaction");
-      conn.commit();
-      logger.debug("Enabling auto commit for this thread");
-      conn.setAutoCommit(true);
-    } finally {
-      //close the em if necessary
-      if (null != didWeStartWork.get()) {
-        didWeStartWork.remove();
-        unitOfWork.end();
-      }
-    }
+    commitAndRestoreAutoCommit(conn, methodInvocation.getMethod(), startedAt);
 
     //or return result
     return result;
   }
 
-  private Transactional readTransactionMetadata(final MethodInvocation methodInvocation) {
-    Method method = methodInvocation.getMethod();
-    Transactional cachedTransactional = methodsTransactionals.get(method);
-    if (cachedTransactional != null) {
-      return cachedTransactional;
+  /**
+   * Pauses before the next attempt of a rolled back {@link Retryable} transaction.  An interrupt cancels the retry.
+   */
+  private static void retrying(final UnitOfWorkConnectionProvider conn, final MethodInvocation methodInvocation,
+                               final TransactionPlan plan, final int attempt, final Throwable e) throws Throwable {
+    long backoff = plan.backoffMillis(attempt);
+    logger.debug("Retrying transaction of {} in {} ms after attempt {} failed", methodInvocation.getMethod(), backoff,
+                 attempt, e);
+    if (conn.isTimed()) {
+      conn.getMetrics().transactionRetried(methodInvocation.getMethod(), attempt);
     }
-
-    Transactional transactional = method.getAnnotation(Transactional.class);
-    if (null == transactional) {
-      // If none on method, try the class.
-      Class<?> targetClass = methodInvocation.getThis().getClass();
-      transactional = targetClass.getAnnotation(Transactional.class);
+    try {
+      Thread.sleep(backoff);
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+      e.addSuppressed(interrupted);
+      throw e;
     }
+  }
 
-    if (null != transactional) {
-      methodsTransactionals.put(method, transactional);
-    } else {
-      // If there is no transactional annotation present, use the default
-      transactional = Internal.class.getAnnotation(Transactional.class);
+  private static TransactionPlan plan(final MethodInvocation methodInvocation) {
+    return TransactionPlan.of(methodInvocation.getThis().getClass(), methodInvocation.getMethod());
+  }
+
+  private JooqPersistService persistService() {
+    JooqPersistService service = jooqPersistService;
+    if (null == service) {
+      service = jooqPersistServiceProvider.get();
+      jooqPersistService = service;
     }
+    return service;
+  }
 
-    return transactional;
+  private static void commitAndRestoreAutoCommit(final UnitOfWorkConnectionProvider conn, final Method method,
+                                                 final long startedAt) {
+    try {
+      logger.debug("Committing JDBC transaction");
+      conn.commit();
+    } catch (RuntimeException e) {
+      try {
+        rollbackAndRestoreAutoCommit(conn, e);
+      } finally {
+        transactionEnded(conn, method, startedAt, e);
+      }
+      throw e;
+    }
+    // the transaction committed, and is reported as such even if the connection cannot be reset
+    try {
+      logger.debug("Enabling auto commit for this thread");
+      conn.setAutoCommit(true);
+    } finally {
+      transactionEnded(conn, method, startedAt, null);
+    }
   }
 
   /**
-   * Returns True if rollback DID NOT HAPPEN (i.e. if commit should continue).
+   * Reports the end of a transaction to the {@link MetricsListener}, if timed.
    *
-   * @param transactional The metadata annotation of the method
-   * @param e             The exception to test for rollback
-   * @param txn           A JPA Transaction to issue rollbacks on
+   * @param rollbackCause the exception the transaction was rolled back for, null if it committed
    */
-  private boolean rollbackIfNecessary(final Transactional transactional,
-                                      final Exception e,
-                                      final DefaultConnectionProvider conn) {
-    boolean commit = true;
-
-    //check rollback clauses
-    for (Class<? extends Exception> rollBackOn : transactional.rollbackOn()) {
-
-      //if one matched, try to perform a rollback
-      if (rollBackOn.isInstance(e)) {
-        commit = false;
-
-        //check ignore clauses (supercedes rollback clause)
-        for (Class<? extends Exception> exceptOn : transactional.ignore()) {
-          //An exception to the rollback clause was found, DON'T rollback
-          // (i.e. commit and throw anyway)
-          if (exceptOn.isInstance(e)) {
-            commit = true;
-            break;
-          }
-        }
-
-        //rollback only if nothing matched the ignore check
-        if (!commit) {
-          logger.debug("Rolling back JDBC transaction for this thread");
-          conn.rollback();
-        }
-        //otherwise continue to commit
+  private static void transactionEnded(final UnitOfWorkConnectionProvider conn, final Method method,
+                                       final long startedAt, final Throwable rollbackCause) {
+    if (!conn.isTimed()) {
+      return;
+    }
+    conn.exitTransactional();
+    long durationNanos = System.nanoTime() - startedAt;
+    if (null == rollbackCause) {
+      conn.getMetrics().transactionCommitted(method, durationNanos);
+    } else {
+      conn.getMetrics().transactionRolledBack(method, durationNanos, rollbackCause.getClass());
+    }
+  }
 
-        break;
+  private static void rollbackAndRestoreAutoCommit(final UnitOfWorkConnectionProvider conn, final Throwable cause) {
+    try {
+      conn.rollback();
+    } catch (RuntimeException e) {
+      cause.addSuppressed(e);
+    } finally {
+      logger.debug("Enabling auto commit for this thread");
+      try {
+        conn.setAutoCommit(true);
+      } catch (RuntimeException e) {
+        cause.addSuppressed(e);
       }
     }
-
-    return commit;
   }
 }
@@ -18,10 +18,18 @@ package com.adamlewis.guice.persist.jooq;
 
 import static com.google.inject.multibindings.OptionalBinder.newOptionalBinder;
 
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.Binder;
+import com.google.inject.Key;
+import com.google.inject.Module;
 import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
 import com.google.inject.persist.PersistModule;
 import com.google.inject.persist.PersistService;
 import com.google.inject.persist.UnitOfWork;
+import javax.sql.DataSource;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.jooq.Configuration;
 import org.jooq.DSLContext;
@@ -33,22 +41,292 @@ import org.jooq.conf.Settings;
  * @author Adam Lewis
  */
 public final class JooqPersistModule extends PersistModule {
+  private final JooqPersistOptions options = new JooqPersistOptions();
   private MethodInterceptor transactionInterceptor;
 
+  /**
+   * Defers taking a JDBC connection from the {@code DataSource} until the first query of a unit of work is executed.
+   * Units of work that never touch the database then never hold a pooled connection.
+   *
+   * @return this module
+   */
+  public JooqPersistModule lazyConnections() {
+    options.setLazyConnections(true);
+    return this;
+  }
+
+  /**
+   * Watches for units of work that stay open longer than the given threshold, which usually means a missing
+   * {@code UnitOfWork.end()} or a hanging transaction.  They are logged and reported to the {@link MetricsListener}
+   * once.  Units of work begun by threads that have since died are rolled back and their connections returned.
+   * <p>
+   * The watchdog runs between {@code PersistService.start()} and {@code stop()}.
+   *
+   * @return this module
+   */
+  public JooqPersistModule watchdog(final long threshold, final TimeUnit unit) {
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Watchdog threshold must be positive: " + threshold);
+    }
+    options.setWatchdogThresholdNanos(unit.toNanos(threshold));
+    return this;
+  }
+
+  /**
+   * Records where one in every {@code oneIn} units of work was begun, so the watchdog can log it.  Taking a stack trace
+   * is expensive, use 1 only while hunting a leak.
+   *
+   * @return this module
+   * @see #watchdog(long, TimeUnit)
+   */
+  public JooqPersistModule sampleStackTraces(final int oneIn) {
+    if (oneIn < 1) {
+      throw new IllegalArgumentException("Stack trace sampling must be at least 1: " + oneIn);
+    }
+    options.setStackTraceSampling(oneIn);
+    return this;
+  }
+
+  /**
+   * Keeps the records loaded within a unit of work, so loading them again through the {@link RecordCache} does not
+   * query the database.  Tracking the tables statements modify adds some overhead to rendering every statement.
+   *
+   * @return this module
+   */
+  public JooqPersistModule recordCache() {
+    options.setRecordCache(true);
+    return this;
+  }
+
+  /**
+   * Installs a {@link ResultCache} shared by all units of work, holding up to {@code maximumSize} query results for at
+   * most the given time.  Tracking the tables statements read and modify adds some overhead to rendering every
+   * statement.
+   *
+   * @return this module
+   */
+  public JooqPersistModule resultCache(final int maximumSize, final long timeToLive, final TimeUnit unit) {
+    if (maximumSize <= 0 || timeToLive <= 0) {
+      throw new IllegalArgumentException("Result cache size and time to live must be positive");
+    }
+    options.setResultCacheSize(maximumSize).setResultCacheTimeToLiveNanos(unit.toNanos(timeToLive));
+    return this;
+  }
+
+  /**
+   * Traces the statements of one in {@code oneIn} units of work and reports the traces of those that executed the same
+   * query shape at least {@code repeatedQueries} times, typically an N+1 query, or at least {@code statements}
+   * statements to the {@link QueryTraceListener}.  Units of work that are not sampled only pay for a thread-local
+   * lookup per statement.
+   *
+   * @return this module
+   * @see QueryTrace
+   */
+  public JooqPersistModule traceQueries(final int oneIn, final int repeatedQueries, final int statements) {
+    if (oneIn < 1 || repeatedQueries < 2 || statements < 1) {
+      throw new IllegalArgumentException("Invalid query tracing: one in " + oneIn + ", " + repeatedQueries
+                                             + " repetitions, " + statements + " statements");
+    }
+    options.setTraceSampling(oneIn).setTraceRepeatThreshold(repeatedQueries).setTraceStatementThreshold(statements);
+    return this;
+  }
+
+  /**
+   * Warms up when the service starts: opens the given number of connections at once, validates each with a trivial
+   * query, and renders the {@link WarmUpQuery warm-up queries} and prepares them on each, which only fills
+   * client-side statement caches.  Failures are logged, they do not fail {@code start()}.
+   *
+   * @return this module
+   */
+  public JooqPersistModule warmUp(final int connections) {
+    if (connections < 1) {
+      throw new IllegalArgumentException("Warm-up connections must be at least 1: " + connections);
+    }
+    options.setWarmUpConnections(connections);
+    return this;
+  }
+
+  /**
+   * Makes {@code stop()} wait up to the given time for the units of work in progress to end.  Counting units of work
+   * adds a little overhead to each of them.
+   *
+   * @return this module
+   */
+  public JooqPersistModule drainOnStop(final long timeout, final TimeUnit unit) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("Drain timeout must be positive: " + timeout);
+    }
+    options.setDrainTimeoutNanos(unit.toNanos(timeout));
+    return this;
+  }
+
+  /**
+   * Bounds the number of units of work holding a connection at once; units of work begun on this module are rejected
+   * with a {@link ConnectionRejectedException} when they cannot get a permit in time.
+   *
+   * @return this module
+   * @see #readOnlyConcurrencyLimit(ConcurrencyLimit)
+   */
+  public JooqPersistModule concurrencyLimit(final ConcurrencyLimit limit) {
+    options.setConcurrencyLimit(limit);
+    return this;
+  }
+
+  /**
+   * Gives {@link ReadOnly} units of work a limit of their own, so that a burst of reads cannot starve writes or the
+   * other way around.  Without it they share the {@link #concurrencyLimit(ConcurrencyLimit) concurrency limit}.
+   *
+   * @return this module
+   */
+  public JooqPersistModule readOnlyConcurrencyLimit(final ConcurrencyLimit limit) {
+    options.setReadOnlyConcurrencyLimit(limit);
+    return this;
+  }
+
+  /**
+   * Sets the number of threads, and so of connections, that {@link ParallelQueries} run queries on; by default as many
+   * as there are processors.
+   *
+   * @return this module
+   */
+  public JooqPersistModule parallelQueries(final int threads) {
+    return parallelQueries(threads, options.getParallelQueryQueueSize());
+  }
+
+  /**
+   * Sets the threads of {@link ParallelQueries} and how many queries may wait for one, by default 1024.  Submitting a
+   * query while the queue is full fails with a {@link java.util.concurrent.RejectedExecutionException}.
+   *
+   * @return this module
+   */
+  public JooqPersistModule parallelQueries(final int threads, final int queueSize) {
+    if (threads < 1 || queueSize < 1) {
+      throw new IllegalArgumentException("Parallel query threads and queue size must be at least 1: " + threads + ", "
+                                         + queueSize);
+    }
+    options.setParallelQueryThreads(threads).setParallelQueryQueueSize(queueSize);
+    return this;
+  }
+
+  /**
+   * Sets the threads and queue size of the pool running {@link TransactionSynchronizations#afterCommitAsync(Runnable)}
+   * callbacks; by default one thread and 1024 queued callbacks.
+   *
+   * @return this module
+   */
+  public JooqPersistModule asyncCallbacks(final int threads, final int queueSize) {
+    if (threads < 1 || queueSize < 1) {
+      throw new IllegalArgumentException("Async callback threads and queue size must be at least 1: " + threads + ", "
+                                         + queueSize);
+    }
+    options.setAsyncCallbackThreads(threads).setAsyncCallbackQueueSize(queueSize);
+    return this;
+  }
+
+  /**
+   * Sets the number of rendered shapes {@link PreparedQueries} keeps, counting a shape once per configuration it ran
+   * with; by default 1024.
+   *
+   * @return this module
+   */
+  public JooqPersistModule preparedQueryCache(final int maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("Prepared query cache size must be at least 1: " + maximumSize);
+    }
+    options.setPreparedQueryCacheSize(maximumSize);
+    return this;
+  }
+
+  /**
+   * Serves each tenant from a schema of its own, named by the bound {@link TenantResolver} when a unit of work begins:
+   * references to the given schema are rendered as the tenant's.  The contexts of the most recently used tenants are
+   * kept, up to the given number.
+   *
+   * @param schema the schema that generated tables belong to
+   * @param maxTenants the number of tenants whose contexts are kept
+   * @return this module
+   */
+  public JooqPersistModule tenantSchemas(final String schema, final int maxTenants) {
+    if (maxTenants < 1) {
+      throw new IllegalArgumentException("Maximum number of tenants must be at least 1: " + maxTenants);
+    }
+    options.setTenantSchema(schema).setMaxTenants(maxTenants).setTenantSearchPath(false);
+    return this;
+  }
+
+  /**
+   * Serves each tenant from a schema of its own, named by the bound {@link TenantResolver} when a unit of work begins,
+   * by switching the schema of the connection, i.e. the {@code search_path} on PostgreSQL.  Statements render as
+   * they would without tenants, so they should not be qualified with a schema.  A connection goes back to the pool
+   * still switched to its tenant's schema, and is only switched again when a unit of work of another tenant takes it;
+   * units of work without a tenant switch it back to the schema it came with, on PostgreSQL to its whole
+   * {@code search_path}.  The {@code DataSource} should therefore not be shared with code outside this module.
+   *
+   * @return this module
+   */
+  public JooqPersistModule tenantSearchPath() {
+    options.setTenantSearchPath(true).setTenantSchema(null);
+    return this;
+  }
+
+  /**
+   * Returns this module as a persistence unit qualified by the given binding annotation, so that several units can be
+   * installed in one injector, e.g. one per database shard:
+   * <pre>
+   *   install(new JooqPersistModule().annotatedWith(Orders.class));
+   * </pre>
+   * The unit uses the {@code DataSource} and {@code SQLDialect} bound with the annotation and provides the
+   * {@code DSLContext}, {@code UnitOfWork} and {@code PersistService} with the annotation.  Its transactions are run by
+   * {@code @Transactional} methods annotated {@link PersistenceUnit @PersistenceUnit(Orders.class)}.  Qualified units do
+   * not use a {@link Replica}, and share the {@code Settings}, {@code Configuration} and listeners bound for the
+   * default unit.  Install the returned module instead of this one; it can be installed next to a default unit.
+   *
+   * @see ShardRouter
+   */
+  public Module annotatedWith(final Class<? extends Annotation> qualifier) {
+    options.setQualifier(qualifier);
+    return new QualifiedJooqPersistModule(qualifier, options);
+  }
+
   @Override
   protected void configurePersistence() {
-    newOptionalBinder(binder(), Settings.class);
-    newOptionalBinder(binder(), Configuration.class);
+    if (null == options.getQualifier()) {
+      bindExtensionPoints(binder());
+    }
+    bind(JooqPersistOptions.class).toInstance(options);
     bind(JooqPersistService.class).in(Singleton.class);
     bind(PersistService.class).to(JooqPersistService.class);
     bind(UnitOfWork.class).to(JooqPersistService.class);
     bind(DSLContext.class).toProvider(JooqPersistService.class);
+    bind(TransactionPropagation.class);
+    bind(RecordCache.class);
+    bind(ResultCache.class);
+    bind(QueryStreams.class);
+    bind(BulkLoader.class);
+    bind(ParallelQueries.class);
+    bind(TransactionSynchronizations.class);
+    bind(PreparedQueries.class);
 
-    transactionInterceptor = new JdbcLocalTxnInterceptor(getProvider(JooqPersistService.class),
-                                                         getProvider(UnitOfWork.class));
+    transactionInterceptor = new JdbcLocalTxnInterceptor(getProvider(JooqPersistService.class));
     requestInjection(transactionInterceptor);
   }
 
+  /**
+   * Declares the optional bindings read by every persistence unit, and the context of the
+   * {@link ShardRouter.Routed routed} unit.  Every unit declares the same ones, so that they are bound whichever units
+   * are installed; identical declarations are merged.
+   */
+  static void bindExtensionPoints(final Binder binder) {
+    newOptionalBinder(binder, Settings.class);
+    newOptionalBinder(binder, Configuration.class);
+    newOptionalBinder(binder, Key.get(DataSource.class, Replica.class));
+    newOptionalBinder(binder, MetricsListener.class);
+    newOptionalBinder(binder, QueryTraceListener.class);
+    newOptionalBinder(binder, TenantResolver.class);
+    Multibinder.newSetBinder(binder, WarmUpQuery.class);
+    binder.bind(Key.get(DSLContext.class, ShardRouter.Routed.class)).toProvider(ShardRouter.ROUTED_CONTEXT);
+  }
+
   @Override
   protected MethodInterceptor getTransactionInterceptor() {
     return transactionInterceptor;
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * Options collected by {@link JooqPersistModule} and handed to the {@link JooqPersistService}.
+ */
+final class JooqPersistOptions {
+  private boolean lazyConnections;
+  // null for the unqualified persistence unit
+  private Class<? extends Annotation> qualifier;
+  // 0 if the watchdog is disabled
+  private long watchdogThresholdNanos;
+  // record the stack trace of one in this many units of work, 0 for none
+  private int stackTraceSampling;
+  private boolean recordCache;
+  // 0 if there is no result cache
+  private int resultCacheSize;
+  private long resultCacheTimeToLiveNanos;
+  private int parallelQueryThreads = Runtime.getRuntime().availableProcessors();
+  private int parallelQueryQueueSize = 1024;
+  private int asyncCallbackThreads = 1;
+  private int preparedQueryCacheSize = 1024;
+  // schema rendered as the tenant's, null unless tenant schemas are mapped
+  private String tenantSchema;
+  private int maxTenants;
+  private boolean tenantSearchPath;
+  private int asyncCallbackQueueSize = 1024;
+  // connections opened when the service starts, 0 for no warm-up
+  private int warmUpConnections;
+  // 0 if stop() does not wait for units of work
+  private long drainTimeoutNanos;
+  // trace the statements of one in this many units of work, 0 for none
+  private int traceSampling;
+  private int traceRepeatThreshold;
+  private int traceStatementThreshold;
+  // null if unlimited
+  private ConcurrencyLimit concurrencyLimit;
+  // null if read-only units of work share the concurrency limit
+  private ConcurrencyLimit readOnlyConcurrencyLimit;
+
+  Class<? extends Annotation> getQualifier() {
+    return qualifier;
+  }
+
+  JooqPersistOptions setQualifier(final Class<? extends Annotation> qualifier) {
+    this.qualifier = qualifier;
+    return this;
+  }
+
+  boolean isLazyConnections() {
+    return lazyConnections;
+  }
+
+  JooqPersistOptions setLazyConnections(final boolean lazyConnections) {
+    this.lazyConnections = lazyConnections;
+    return this;
+  }
+
+  long getWatchdogThresholdNanos() {
+    return watchdogThresholdNanos;
+  }
+
+  JooqPersistOptions setWatchdogThresholdNanos(final long watchdogThresholdNanos) {
+    this.watchdogThresholdNanos = watchdogThresholdNanos;
+    return this;
+  }
+
+  boolean isRecordCache() {
+    return recordCache;
+  }
+
+  JooqPersistOptions setRecordCache(final boolean recordCache) {
+    this.recordCache = recordCache;
+    return this;
+  }
+
+  int getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  JooqPersistOptions setResultCacheSize(final int resultCacheSize) {
+    this.resultCacheSize = resultCacheSize;
+    return this;
+  }
+
+  long getResultCacheTimeToLiveNanos() {
+    return resultCacheTimeToLiveNanos;
+  }
+
+  JooqPersistOptions setResultCacheTimeToLiveNanos(final long resultCacheTimeToLiveNanos) {
+    this.resultCacheTimeToLiveNanos = resultCacheTimeToLiveNanos;
+    return this;
+  }
+
+  /**
+   * @return true if the tables statements reference need to be known
+   */
+  boolean isTrackingTables() {
+    return recordCache || resultCacheSize > 0;
+  }
+
+  int getStackTraceSampling() {
+    return stackTraceSampling;
+  }
+
+  JooqPersistOptions setStackTraceSampling(final int stackTraceSampling) {
+    this.stackTraceSampling = stackTraceSampling;
+    return this;
+  }
+
+  int getTraceSampling() {
+    return traceSampling;
+  }
+
+  JooqPersistOptions setTraceSampling(final int traceSampling) {
+    this.traceSampling = traceSampling;
+    return this;
+  }
+
+  int getTraceRepeatThreshold() {
+    return traceRepeatThreshold;
+  }
+
+  JooqPersistOptions setTraceRepeatThreshold(final int traceRepeatThreshold) {
+    this.traceRepeatThreshold = traceRepeatThreshold;
+    return this;
+  }
+
+  int getTraceStatementThreshold() {
+    return traceStatementThreshold;
+  }
+
+  JooqPersistOptions setTraceStatementThreshold(final int traceStatementThreshold) {
+    this.traceStatementThreshold = traceStatementThreshold;
+    return this;
+  }
+
+  int getWarmUpConnections() {
+    return warmUpConnections;
+  }
+
+  JooqPersistOptions setWarmUpConnections(final int warmUpConnections) {
+    this.warmUpConnections = warmUpConnections;
+    return this;
+  }
+
+  long getDrainTimeoutNanos() {
+    return drainTimeoutNanos;
+  }
+
+  JooqPersistOptions setDrainTimeoutNanos(final long drainTimeoutNanos) {
+    this.drainTimeoutNanos = drainTimeoutNanos;
+    return this;
+  }
+
+  ConcurrencyLimit getConcurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  JooqPersistOptions setConcurrencyLimit(final ConcurrencyLimit concurrencyLimit) {
+    this.concurrencyLimit = concurrencyLimit;
+    return this;
+  }
+
+  ConcurrencyLimit getReadOnlyConcurrencyLimit() {
+    return readOnlyConcurrencyLimit;
+  }
+
+  JooqPersistOptions setReadOnlyConcurrencyLimit(final ConcurrencyLimit readOnlyConcurrencyLimit) {
+    this.readOnlyConcurrencyLimit = readOnlyConcurrencyLimit;
+    return this;
+  }
+
+  int getParallelQueryThreads() {
+    return parallelQueryThreads;
+  }
+
+  JooqPersistOptions setParallelQueryThreads(final int parallelQueryThreads) {
+    this.parallelQueryThreads = parallelQueryThreads;
+    return this;
+  }
+
+  int getParallelQueryQueueSize() {
+    return parallelQueryQueueSize;
+  }
+
+  JooqPersistOptions setParallelQueryQueueSize(final int parallelQueryQueueSize) {
+    this.parallelQueryQueueSize = parallelQueryQueueSize;
+    return this;
+  }
+
+  int getAsyncCallbackThreads() {
+    return asyncCallbackThreads;
+  }
+
+  JooqPersistOptions setAsyncCallbackThreads(final int asyncCallbackThreads) {
+    this.asyncCallbackThreads = asyncCallbackThreads;
+    return this;
+  }
+
+  int getAsyncCallbackQueueSize() {
+    return asyncCallbackQueueSize;
+  }
+
+  JooqPersistOptions setAsyncCallbackQueueSize(final int asyncCallbackQueueSize) {
+    this.asyncCallbackQueueSize = asyncCallbackQueueSize;
+    return this;
+  }
+
+  String getTenantSchema() {
+    return tenantSchema;
+  }
+
+  JooqPersistOptions setTenantSchema(final String tenantSchema) {
+    this.tenantSchema = tenantSchema;
+    return this;
+  }
+
+  int getMaxTenants() {
+    return maxTenants;
+  }
+
+  JooqPersistOptions setMaxTenants(final int maxTenants) {
+    this.maxTenants = maxTenants;
+    return this;
+  }
+
+  boolean isTenantSearchPath() {
+    return tenantSearchPath;
+  }
+
+  JooqPersistOptions setTenantSearchPath(final boolean tenantSearchPath) {
+    this.tenantSearchPath = tenantSearchPath;
+    return this;
+  }
+
+  /**
+   * @return true if units of work are bound to the tenant of the thread beginning them
+   */
+  boolean isMultiTenant() {
+    return null != tenantSchema || tenantSearchPath;
+  }
+
+  int getPreparedQueryCacheSize() {
+    return preparedQueryCacheSize;
+  }
+
+  JooqPersistOptions setPreparedQueryCacheSize(final int preparedQueryCacheSize) {
+    this.preparedQueryCacheSize = preparedQueryCacheSize;
+    return this;
+  }
+}
@@ -16,23 +16,37 @@
 
 package com.adamlewis.guice.persist.jooq;
 
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.sql.DataSource;
 
-import java.sql.Connection;
-import java.sql.SQLException;
-
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.persist.PersistService;
 import com.google.inject.persist.UnitOfWork;
 import org.jooq.Configuration;
+import org.jooq.ConnectionProvider;
 import org.jooq.DSLContext;
+import org.jooq.ExecuteListener;
+import org.jooq.ExecuteListenerProvider;
 import org.jooq.SQLDialect;
+import org.jooq.VisitListenerProvider;
 import org.jooq.conf.Settings;
 import org.jooq.impl.DSL;
-import org.jooq.impl.DefaultConnectionProvider;
+import org.jooq.impl.DefaultConfiguration;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.jooq.impl.DefaultVisitListenerProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,108 +60,478 @@ import org.slf4j.LoggerFactory;
 class JooqPersistService implements Provider<DSLContext>, UnitOfWork, PersistService {
 
   private static final Logger logger = LoggerFactory.getLogger(JooqPersistService.class);
+  // how long stop() waits for the pools of handed-off work unless drainOnStop sets a timeout
+  private static final long EXECUTOR_TIMEOUT_SECONDS = 10;
 
-  private final ThreadLocal<DSLContext> threadFactory = new ThreadLocal<DSLContext>();
-  private final ThreadLocal<DefaultConnectionProvider> threadConnection = new ThreadLocal<DefaultConnectionProvider>();
+  // the single thread-local entry per unit of work, removed again in end()
+  private final ThreadLocal<UnitOfWorkConnectionProvider> threadConnection = new ThreadLocal<UnitOfWorkConnectionProvider>();
   private final Provider<DataSource> jdbcSource;
-  private final SQLDialect sqlDialect;
-  private final Settings jooqSettings;
-  private final Configuration configuration;
+  private final Provider<DataSource> replicaSource;
+  // true if read-only units of work run on a replica rather than the primary
+  private final boolean hasReplica;
+  private final boolean lazyConnections;
+  // null if connections are not limited
+  private final ConcurrencyLimit concurrencyLimit;
+  private final ConcurrencyLimit readOnlyConcurrencyLimit;
+  private final MetricsListener metrics;
+  private final boolean recordCache;
+  private final boolean trackingTables;
+  // null unless a result cache is installed
+  private final Provider<ResultCache> resultCacheProvider;
+  private volatile ResultCache resultCache;
+  // null unless the watchdog is enabled
+  private final UnitOfWorkWatchdog watchdog;
+  private final DSLContext jooqFactory;
+  private final int warmUpConnections;
+  private final Set<WarmUpQuery> warmUpQueries;
+  private final long drainTimeoutNanos;
+  private final int traceSampling;
+  private final int traceRepeatThreshold;
+  private final int traceStatementThreshold;
+  private final QueryTraceListener traceListener;
+  // null unless units of work serve tenants
+  private final TenantResolver tenantResolver;
+  // null unless tenant schemas are rendered by per tenant contexts
+  private final TenantConfigurations tenants;
+  // null unless tenants are served by switching the schema of the connection
+  private final SessionSchemas sessionSchemas;
+  // units of work begun and not ended yet, null unless stop() drains them
+  private final LongAdder activeUnitsOfWork;
+  // the configuration without the listeners added here, for units of work not bound to a thread
+  private final Configuration detachedConfiguration;
+  // serializes start() and stop().  This library guards shared state with ReentrantLocks rather than monitors
+  // throughout: a thread blocking on a monitor pins the carrier of a virtual thread, one waiting for a lock does not.
+  private final ReentrantLock lifecycle = new ReentrantLock();
+  private boolean started;
+  // pools running work handed off by units of work, shut down by stop()
+  private final List<ExecutorService> executors = new CopyOnWriteArrayList<ExecutorService>();
 
   @Inject
-  public JooqPersistService(final Provider<DataSource> jdbcSource, final SQLDialect sqlDialect,
-      Optional<Settings> jooqSettings, Optional<Configuration> configuration) {
+  public JooqPersistService(final Provider<DataSource> jdbcSource,
+      @Replica final Optional<Provider<DataSource>> replicaSource, final SQLDialect sqlDialect,
+      Optional<Settings> jooqSettings, Optional<Configuration> configuration, final JooqPersistOptions options,
+      final Optional<MetricsListener> metrics, final Provider<ResultCache> resultCache,
+      final Set<WarmUpQuery> warmUpQueries, final Optional<QueryTraceListener> traceListener,
+      final Optional<TenantResolver> tenantResolver) {
     this.jdbcSource = jdbcSource;
-    this.sqlDialect = sqlDialect;
-    this.configuration = configuration.orElse(null);
-    if (configuration.isPresent() && jooqSettings.isPresent()) {
-      logger.warn("@Injected org.jooq.conf.Settings is being ignored since a full org.jooq.Configuration was supplied");
-      this.jooqSettings = null;
+    // a replica bound for the unqualified persistence unit is visible to qualified ones, but is not theirs
+    this.replicaSource = null == options.getQualifier() ? replicaSource.orElse(jdbcSource) : jdbcSource;
+    this.hasReplica = this.replicaSource != jdbcSource;
+    this.lazyConnections = options.isLazyConnections();
+    this.concurrencyLimit = options.getConcurrencyLimit();
+    this.readOnlyConcurrencyLimit = null != options.getReadOnlyConcurrencyLimit()
+        ? options.getReadOnlyConcurrencyLimit()
+        : options.getConcurrencyLimit();
+    this.metrics = metrics.orElse(MetricsListener.NONE);
+    this.recordCache = options.isRecordCache();
+    this.trackingTables = options.isTrackingTables();
+    this.resultCacheProvider = options.getResultCacheSize() > 0 ? resultCache : null;
+    this.watchdog = options.getWatchdogThresholdNanos() > 0
+        ? new UnitOfWorkWatchdog(options.getWatchdogThresholdNanos(), options.getStackTraceSampling(), this.metrics)
+        : null;
+    this.traceSampling = options.getTraceSampling();
+    this.traceRepeatThreshold = options.getTraceRepeatThreshold();
+    this.traceStatementThreshold = options.getTraceStatementThreshold();
+    this.traceListener = traceListener.orElse(QueryTraceListener.LOG);
+    this.warmUpConnections = options.getWarmUpConnections();
+    this.warmUpQueries = warmUpQueries;
+    this.drainTimeoutNanos = options.getDrainTimeoutNanos();
+    this.activeUnitsOfWork = drainTimeoutNanos > 0 ? new LongAdder() : null;
+    Configuration base = derivedConfiguration(sqlDialect, jooqSettings, configuration);
+    this.detachedConfiguration = base.derive();
+    this.jooqFactory = DSL.using(withListeners(base));
+    if (options.isMultiTenant() && !tenantResolver.isPresent()) {
+      throw new IllegalStateException("Tenant schemas require a binding for " + TenantResolver.class.getName());
+    }
+    this.tenantResolver = options.isMultiTenant() ? tenantResolver.get() : null;
+    this.tenants = null != options.getTenantSchema()
+        ? new TenantConfigurations(jooqFactory, options.getTenantSchema(), options.getMaxTenants())
+        : null;
+    this.sessionSchemas = options.isMultiTenant() && null == tenants
+        ? new SessionSchemas(jooqFactory.dialect().family() == SQLDialect.POSTGRES)
+        : null;
+  }
+
+  /**
+   * Adds the listeners backing the features enabled in the module to the shared configuration.
+   */
+  private Configuration withListeners(final Configuration base) {
+    if (trackingTables) {
+      List<VisitListenerProvider> visitListeners = new ArrayList<VisitListenerProvider>(
+          Arrays.asList(base.visitListenerProviders()));
+      visitListeners.add(new DefaultVisitListenerProvider(new TableReferenceListener(this)));
+      base.set(visitListeners.toArray(new VisitListenerProvider[0]));
+    }
+    // our listeners run after any listeners of an injected configuration
+    List<ExecuteListenerProvider> listeners = new ArrayList<ExecuteListenerProvider>(
+        Arrays.asList(base.executeListenerProviders()));
+    listeners.add(new DefaultExecuteListenerProvider(new TransactionLimitsListener(this)));
+    if (recordCache) {
+      listeners.add(new DefaultExecuteListenerProvider(new RecordCacheListener(this)));
+    }
+    if (null != resultCacheProvider) {
+      listeners.add(new DefaultExecuteListenerProvider(new ResultCacheListener(this)));
+    }
+    if (traceSampling > 0) {
+      listeners.add(new DefaultExecuteListenerProvider(new QueryTracingListener(this)));
+    }
+    if (metrics != MetricsListener.NONE) {
+      // time every statement
+      listeners.add(new DefaultExecuteListenerProvider(new QueryMetricsListener(this)));
+    }
+    return base.set(listeners.toArray(new ExecuteListenerProvider[0]));
+  }
+
+  /**
+   * Builds the configuration shared by all units of work.  Only the connection differs between units of work, so
+   * the configuration is derived once with a connection provider that resolves to the current unit of work; all
+   * other providers of an injected {@link Configuration} (listeners, mappers, converters, ...) are kept.
+   */
+  private Configuration derivedConfiguration(final SQLDialect sqlDialect, final Optional<Settings> jooqSettings,
+                                             final Optional<Configuration> configuration) {
+    ConnectionProvider connectionProvider = new ThreadBoundConnectionProvider();
+    if (configuration.isPresent()) {
+      if (jooqSettings.isPresent()) {
+        logger.warn("@Injected org.jooq.conf.Settings is being ignored since a full org.jooq.Configuration was supplied");
+      }
+      logger.debug("Creating factory from configuration having dialect {}", configuration.get().dialect());
+      return configuration.get().derive(connectionProvider);
+    }
+
+    Configuration base = new DefaultConfiguration().set(connectionProvider).set(sqlDialect);
+    if (jooqSettings.isPresent()) {
+      logger.debug("Creating factory with dialect {} and settings.", sqlDialect);
+      base.set(jooqSettings.get());
     } else {
-      this.jooqSettings = jooqSettings.orElse(null);
+      logger.debug("Creating factory with dialect {}", sqlDialect);
     }
+    return base;
   }
 
   public DSLContext get() {
-    DSLContext factory = threadFactory.get();
-    if(null == factory) {
+    UnitOfWorkConnectionProvider conn = threadConnection.get();
+    if(null == conn) {
       throw new IllegalStateException("Requested Factory outside work unit. "
               + "Try calling UnitOfWork.begin() first, use @Transactional annotation"
               + "or use a PersistFilter if you are inside a servlet environment.");
     }
 
-    return factory;
+    DSLContext tenantContext = conn.getTenantContext();
+    return null != tenantContext ? tenantContext : jooqFactory;
   }
 
-  public DefaultConnectionProvider getConnectionWrapper() {
+  /**
+   * @return the connection of the current unit of work, or null if no work has begun on this thread
+   */
+  public UnitOfWorkConnectionProvider getConnectionWrapper() {
 	  return threadConnection.get();
   }
 
+  /**
+   * @return true if the given unit of work reads from a {@link Replica}
+   */
+  boolean readsReplica(final UnitOfWorkConnectionProvider conn) {
+    return hasReplica && conn.isReadOnly();
+  }
+
+  /**
+   * @return the installed metrics listener, {@link MetricsListener#NONE} if none is bound
+   */
+  MetricsListener getMetrics() {
+    return metrics;
+  }
+
   public boolean isWorking() {
-    return threadFactory.get() != null;
+    return threadConnection.get() != null;
   }
 
   public void begin() {
-    if(null != threadFactory.get()) {
+    begin(false);
+  }
+
+  /**
+   * Begins a unit of work on this thread.  A read-only unit of work takes its connection from the {@link Replica}
+   * data source, when one is bound, and marks it read-only.
+   */
+  void begin(final boolean readOnly) {
+    if(null != threadConnection.get()) {
       throw new IllegalStateException("Work already begun on this thread. "
               + "It looks like you have called UnitOfWork.begin() twice"
               + " without a balancing call to end() in between.");
     }
 
-    DefaultConnectionProvider conn;
-    try {
-      logger.debug("Getting JDBC connection");
-      DataSource dataSource = jdbcSource.get();
-      Connection jdbcConn = dataSource.getConnection();
-      conn = new DefaultConnectionProvider(jdbcConn);
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
+    UnitOfWorkConnectionProvider conn = readOnly
+            ? new UnitOfWorkConnectionProvider(replicaSource.get(), true, metrics)
+            : new UnitOfWorkConnectionProvider(jdbcSource.get(), false, metrics);
+    if (null != resultCacheProvider) {
+      conn.setResultCache(resultCache());
     }
+    conn.setConcurrencyLimit(readOnly ? readOnlyConcurrencyLimit : concurrencyLimit);
+    if (null != tenantResolver) {
+      setTenant(conn, tenantResolver.currentSchema());
+    }
+    if (traceSampling > 0 && ThreadLocalRandom.current().nextInt(traceSampling) == 0) {
+      conn.setTrace(new QueryTrace(traceRepeatThreshold, traceStatementThreshold));
+    }
+    if (!lazyConnections) {
+      conn.open();
+    }
+    threadConnection.set(conn);
+    if (null != activeUnitsOfWork) {
+      conn.countIn(activeUnitsOfWork);
+    }
+    if (null != watchdog) {
+      watchdog.register(conn);
+    }
+  }
 
-    DSLContext jooqFactory;
+  private ResultCache resultCache() {
+    ResultCache cache = resultCache;
+    if (null == cache) {
+      // the cache depends on this service, it can only be resolved once both exist
+      cache = resultCacheProvider.get();
+      resultCache = cache;
+    }
+    return cache;
+  }
 
-    if (configuration != null) {
-      logger.debug("Creating factory from configuration having dialect {}", configuration.dialect());
-      jooqFactory = DSL.using(conn, configuration.dialect(), configuration.settings());
-    } else {
-      if (jooqSettings == null) {
-        logger.debug("Creating factory with dialect {}", sqlDialect);
-        jooqFactory = DSL.using(conn, sqlDialect);
-      } else {
-        logger.debug("Creating factory with dialect {} and settings.", sqlDialect);
-        jooqFactory = DSL.using(conn, sqlDialect, jooqSettings);
-      }
+  private void setTenant(final UnitOfWorkConnectionProvider conn, final String tenant) {
+    conn.setTenant(tenant, sessionSchemas);
+    if (null != tenants && null != tenant) {
+      conn.setTenantContext(tenants.context(tenant));
     }
-    threadConnection.set(conn);
-    threadFactory.set(jooqFactory);
+  }
+
+  /**
+   * @return the schema of the tenant served by the current unit of work or, outside of one, by the calling thread;
+   * null for the default schema or without tenants
+   */
+  String currentTenant() {
+    UnitOfWorkConnectionProvider conn = threadConnection.get();
+    if (null != conn) {
+      return conn.getTenant();
+    }
+    return null != tenantResolver ? tenantResolver.currentSchema() : null;
+  }
+
+  /**
+   * Creates a unit of work that is not bound to any thread; a read-only one runs on the {@link Replica} if one is
+   * bound.
+   *
+   * @param tenant schema of the tenant served, see {@link #currentTenant()}
+   * @see QueryStreams
+   * @see BulkLoader
+   */
+  UnitOfWorkConnectionProvider newDetachedWork(final boolean readOnly, final String tenant) {
+    UnitOfWorkConnectionProvider conn = readOnly
+        ? new UnitOfWorkConnectionProvider(replicaSource.get(), true)
+        : new UnitOfWorkConnectionProvider(jdbcSource.get(), false);
+    // admitted like any other unit of work, these are where load is heaviest
+    conn.setConcurrencyLimit(readOnly ? readOnlyConcurrencyLimit : concurrencyLimit);
+    if (null != tenantResolver) {
+      conn.setTenant(tenant, sessionSchemas);
+    }
+    if (null != activeUnitsOfWork) {
+      conn.countIn(activeUnitsOfWork);
+    }
+    return conn;
+  }
+
+  /**
+   * @return a configuration executing on the given unit of work, with the listeners of an injected configuration
+   * but none of the ones added by this module
+   */
+  Configuration detachedConfiguration(final UnitOfWorkConnectionProvider conn, final ExecuteListener... added) {
+    Configuration derived = detachedConfiguration.derive(conn);
+    if (null != tenants && null != conn.getTenant()) {
+      derived.set(tenants.context(conn.getTenant()).settings());
+    }
+    if (added.length == 0) {
+      return derived;
+    }
+    ExecuteListenerProvider[] listeners = Arrays.copyOf(derived.executeListenerProviders(),
+                                                        derived.executeListenerProviders().length + added.length);
+    for (int i = 0; i < added.length; i++) {
+      listeners[listeners.length - added.length + i] = new DefaultExecuteListenerProvider(added[i]);
+    }
+    return derived.set(listeners);
   }
 
   public void end() {
-	  DSLContext jooqFactory = threadFactory.get();
-	  DefaultConnectionProvider conn = threadConnection.get();
+	  UnitOfWorkConnectionProvider conn = threadConnection.get();
     // Let's not penalize users for calling end() multiple times.
-    if (null == jooqFactory) {
+    if (null == conn) {
+      return;
+    }
+    // work attached from another thread is only ended by the thread that began it
+    if (!conn.wasBegunOn(Thread.currentThread())) {
+      threadConnection.remove();
       return;
     }
 
     try {
-      logger.debug("Closing JDBC connection");
-      conn.acquire().close();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
+      // in lazy mode there may be nothing to close
+      conn.close();
+    } finally {
+      try {
+        threadConnection.remove();
+        if (null != watchdog) {
+          watchdog.unregister(conn);
+        }
+        QueryTrace trace = conn.getTrace();
+        if (null != trace && trace.hasFindings()) {
+          traceTo(trace);
+        }
+      } finally {
+        // off the thread's unit of work, so callbacks may begin their own; whatever failed above, they run once
+        conn.runCompletions();
+      }
+    }
+  }
+
+
+  private void traceTo(final QueryTrace trace) {
+    try {
+      traceListener.unitOfWorkTraced(trace);
+    } catch (RuntimeException e) {
+      // may be running while closing failed, whose exception must not be replaced
+      logger.warn("Query trace listener failed", e);
+    }
+  }
+
+  /**
+   * Binds a unit of work begun on another thread to this thread.
+   *
+   * @see TransactionContext#attach()
+   */
+  void attach(final UnitOfWorkConnectionProvider conn) {
+    if(null != threadConnection.get()) {
+      throw new IllegalStateException("Work already begun on this thread. "
+              + "Cannot attach a unit of work captured on another thread.");
     }
-    threadFactory.remove();
+    threadConnection.set(conn);
+  }
+
+  void detach() {
     threadConnection.remove();
   }
 
+  /**
+   * Starts the watchdog and runs the warm-up, if enabled, unless the service is started already.
+   */
+  public void start() {
+    lifecycle.lock();
+    try {
+      if (started) {
+        return;
+      }
+      started = true;
+      if (null != watchdog) {
+        watchdog.start();
+      }
+      if (warmUpConnections > 0) {
+        WarmUp.run(this, warmUpConnections, warmUpQueries);
+      }
+    } finally {
+      lifecycle.unlock();
+    }
+  }
+
+  /**
+   * Waits for the units of work in progress to end, if draining is enabled, and stops the watchdog.  Those include
+   * the units of work of streams, parallel queries and bulk loads.  Units of work may still begin while draining;
+   * stop sending traffic to the service first.  Then shuts down the pool of
+   * {@link TransactionSynchronizations#afterCommitAsync(Runnable) async callbacks}, waiting for the queued callbacks up
+   * to the drain timeout, or 10 seconds if draining is not enabled.
+   */
+  public void stop() {
+    lifecycle.lock();
+    try {
+      started = false;
+      if (null != activeUnitsOfWork) {
+        drain();
+      }
+      if (null != watchdog) {
+        watchdog.stop();
+      }
+      shutDownExecutors();
+    } finally {
+      lifecycle.unlock();
+    }
+  }
+
+  /**
+   * Shuts the given pool down when the service stops.
+   */
+  void shutDownOnStop(final ExecutorService executor) {
+    executors.add(executor);
+  }
+
+  private void shutDownExecutors() {
+    for (ExecutorService executor : executors) {
+      executor.shutdown();
+    }
+    long deadline = System.nanoTime()
+        + (drainTimeoutNanos > 0 ? drainTimeoutNanos : TimeUnit.SECONDS.toNanos(EXECUTOR_TIMEOUT_SECONDS));
+    for (ExecutorService executor : executors) {
+      try {
+        if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          logger.warn("Stopping with {} still running", executor);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.warn("Interrupted while waiting for {} to terminate", executor);
+        return;
+      }
+    }
+  }
 
-  public synchronized void start() {
-	  //nothing to do on start
+  private void drain() {
+    long deadline = System.nanoTime() + drainTimeoutNanos;
+    long active;
+    while ((active = activeUnitsOfWork.sum()) > 0) {
+      if (System.nanoTime() - deadline >= 0) {
+        logger.warn("Stopping with {} units of work still in progress", active);
+        return;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.warn("Interrupted while waiting for {} units of work to end", active);
+        return;
+      }
+    }
   }
 
-  public synchronized void stop() {
-	  //nothing to do on stop
+  /**
+   * @return the watchdog of open units of work, null unless enabled
+   */
+  UnitOfWorkWatchdog getWatchdog() {
+    return watchdog;
   }
 
+  /**
+   * Hands out the connection of the unit of work bound to the calling thread.
+   */
+  private class ThreadBoundConnectionProvider implements ConnectionProvider {
+    @Override
+    public Connection acquire() {
+      UnitOfWorkConnectionProvider conn = threadConnection.get();
+      if (null == conn) {
+        throw new IllegalStateException("Requested connection outside work unit. "
+                + "Try calling UnitOfWork.begin() first, use @Transactional annotation"
+                + "or use a PersistFilter if you are inside a servlet environment.");
+      }
+      return conn.acquire();
+    }
 
+    @Override
+    public void release(final Connection connection) {
+      UnitOfWorkConnectionProvider conn = threadConnection.get();
+      if (null != conn) {
+        conn.release(connection);
+      }
+    }
+  }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.reflect.Method;
+
+/**
+ * Receives timings and counts of units of work, connections, transactions and queries.
+ * <p>
+ * Bind an implementation to install it; without a binding {@link #NONE} is used and nothing is measured:
+ * <pre>
+ *   bind(MetricsListener.class).toInstance(new HistogramMetricsListener());
+ * </pre>
+ * Callbacks run synchronously on the thread doing the work, so implementations must be thread-safe and cheap.  All
+ * durations are in nanoseconds.  Every method does nothing by default.
+ */
+public interface MetricsListener {
+  /**
+   * Listener that ignores everything; the service skips taking timings altogether when it is installed.
+   */
+  MetricsListener NONE = new MetricsListener() {
+  };
+
+  /**
+   * A unit of work ended.
+   *
+   * @param durationNanos time between begin() and end()
+   * @param queries       number of statements executed through the {@code DSLContext} in the unit of work
+   * @param queryNanos    total execution time of those statements
+   */
+  default void unitOfWorkEnded(long durationNanos, int queries, long queryNanos) {
+  }
+
+  /**
+   * A JDBC connection was taken from the {@code DataSource}.
+   *
+   * @param waitNanos time spent in {@code DataSource.getConnection()}
+   */
+  default void connectionAcquired(long waitNanos) {
+  }
+
+  /**
+   * A JDBC connection was returned to the {@code DataSource}.
+   *
+   * @param heldNanos time the unit of work held the connection
+   */
+  default void connectionReleased(long heldNanos) {
+  }
+
+  /**
+   * A statement was executed through the {@code DSLContext}.
+   */
+  default void queryExecuted(long durationNanos) {
+  }
+
+  /**
+   * A transaction begun by the given {@code @Transactional} method committed.
+   */
+  default void transactionCommitted(Method method, long durationNanos) {
+  }
+
+  /**
+   * A transaction begun by the given {@code @Transactional} method rolled back.
+   *
+   * @param cause class of the exception that caused the rollback
+   */
+  default void transactionRolledBack(Method method, long durationNanos, Class<? extends Throwable> cause) {
+  }
+
+  /**
+   * A transaction begun by the given {@link Retryable} method failed and is about to be run again.
+   *
+   * @param attempt number of the attempt that failed, starting at 1
+   */
+  default void transactionRetried(Method method, int attempt) {
+  }
+
+  /**
+   * A {@code @Transactional} method joined an enclosing transaction.
+   *
+   * @param depth nesting depth of the call, 2 for a method called directly by the one that began the transaction
+   */
+  default void transactionJoined(Method method, int depth) {
+  }
+
+  /**
+   * A unit of work was refused a connection by the {@link ConcurrencyLimit}.
+   *
+   * @param waitNanos time spent waiting for a permit
+   */
+  default void connectionRejected(long waitNanos) {
+  }
+
+  /**
+   * A unit of work has been open for longer than the watchdog threshold; reported once per unit of work.
+   *
+   * @param ageNanos time since begin()
+   * @see JooqPersistModule#watchdog(long, java.util.concurrent.TimeUnit)
+   */
+  default void unitOfWorkOverdue(long ageNanos) {
+  }
+
+  /**
+   * The watchdog ended a unit of work whose thread died without ending it.
+   */
+  default void unitOfWorkReclaimed() {
+  }
+}
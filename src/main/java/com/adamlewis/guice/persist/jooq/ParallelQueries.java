@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteContext;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultExecuteListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs independent read-only queries in parallel, each in a unit of work and on a connection of its own:
+ * <pre>
+ *   try (ParallelQueries.Fork fork = parallelQueries.fork()) {
+ *     Future&lt;Integer&gt; users = fork.submit(dsl -&gt; dsl.fetchCount(USER));
+ *     Future&lt;Result&lt;OrderRecord&gt;&gt; orders = fork.submit(dsl -&gt; dsl.selectFrom(ORDER).limit(10).fetch());
+ *     fork.join(2, TimeUnit.SECONDS);
+ *     return new Dashboard(users.get(), orders.get());
+ *   }
+ * </pre>
+ * The queries run on a pool of {@link JooqPersistModule#parallelQueries(int)} threads shared by all forks, which also
+ * bounds the connections they take.  Each query runs in a read-only transaction on the {@link Replica} if one is
+ * bound, outside the calling thread's unit of work, so it does not see the caller's uncommitted writes.  The queries
+ * run with the listeners of an injected {@link org.jooq.Configuration}, but outside the caches, metrics, transaction
+ * deadlines and statement budgets of this module; their connections do count against the
+ * {@link JooqPersistModule#readOnlyConcurrencyLimit(ConcurrencyLimit) read-only concurrency limit}.
+ * <p>
+ * At most {@link JooqPersistModule#parallelQueries(int, int) queueSize} queries wait for a thread; a query submitted
+ * while the queue is full is rejected rather than queued without bound, and the caller should back off.
+ * <p>
+ * When a query fails or the timeout of {@link Fork#join(long, TimeUnit)} passes, the queries still queued or running
+ * are cancelled; running statements are cancelled with {@link Statement#cancel()}.  Closing a fork cancels whatever
+ * has not completed.
+ */
+@Singleton
+public final class ParallelQueries {
+  private static final Logger logger = LoggerFactory.getLogger(ParallelQueries.class);
+
+  private final JooqPersistService persistService;
+  private final ThreadPoolExecutor executor;
+
+  @Inject
+  ParallelQueries(final JooqPersistService persistService, final JooqPersistOptions options) {
+    this.persistService = persistService;
+    int threads = options.getParallelQueryThreads();
+    AtomicInteger created = new AtomicInteger();
+    ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(options.getParallelQueryQueueSize());
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, task -> {
+      Thread thread = new Thread(task, "jooq-parallel-query-" + created.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.AbortPolicy());
+    // idle pools hold no threads
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return a new set of parallel queries, to be closed once their results have been read
+   */
+  public Fork fork() {
+    return new Fork();
+  }
+
+  /**
+   * A set of queries run in parallel and joined together.  Forks are meant to be used by one thread.
+   */
+  public final class Fork implements AutoCloseable {
+    private final List<Query<?>> queries = new ArrayList<Query<?>>();
+
+    private Fork() {
+    }
+
+    /**
+     * Starts running the given query.
+     *
+     * @param query runs one or more read-only statements on the given context and returns their result
+     * @return the result of the query, available once it has completed
+     * @throws RejectedExecutionException if too many queries are already waiting for a thread
+     */
+    public <T> Future<T> submit(final Function<DSLContext, T> query) {
+      // run for the tenant of the forking thread
+      Query<T> submitted = new Query<T>(query, persistService.currentTenant());
+      executor.execute(submitted);
+      queries.add(submitted);
+      return submitted;
+    }
+
+    /**
+     * Waits for all submitted queries to complete.  If one fails or the timeout passes, the others are cancelled.
+     *
+     * @throws TimeoutException if the queries did not complete in time
+     * @throws RuntimeException the exception of the first failed query, in submission order
+     * @throws CancellationException if the calling thread was interrupted while waiting
+     */
+    public void join(final long timeout, final TimeUnit unit) throws TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      try {
+        for (Query<?> query : queries) {
+          query.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+      } catch (TimeoutException e) {
+        close();
+        throw new TimeoutException("Parallel queries did not complete within " + unit.toMillis(timeout) + " ms");
+      } catch (ExecutionException e) {
+        close();
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+      } catch (InterruptedException e) {
+        close();
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Interrupted while waiting for parallel queries");
+      }
+    }
+
+    /**
+     * Cancels the queries that have not completed yet.
+     */
+    @Override
+    public void close() {
+      for (Query<?> query : queries) {
+        query.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * One query of a fork, cancelling its running statement along with itself.
+   */
+  private final class Query<T> extends FutureTask<T> {
+    private final StatementTracker tracker;
+
+    Query(final Function<DSLContext, T> query, final String tenant) {
+      this(query, tenant, new StatementTracker());
+    }
+
+    private Query(final Function<DSLContext, T> query, final String tenant, final StatementTracker tracker) {
+      super(() -> execute(query, tenant, tracker));
+      this.tracker = tracker;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        tracker.cancel();
+      }
+      return cancelled;
+    }
+  }
+
+  private <T> T execute(final Function<DSLContext, T> query, final String tenant, final StatementTracker tracker) {
+    UnitOfWorkConnectionProvider conn = persistService.newDetachedWork(true, tenant);
+    try {
+      conn.setAutoCommit(false);
+      try {
+        return query.apply(DSL.using(persistService.detachedConfiguration(conn, tracker)));
+      } finally {
+        try {
+          conn.rollback();
+        } finally {
+          conn.setAutoCommit(true);
+        }
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Keeps track of the statement being executed by a query, so that it can be cancelled from another thread.
+   */
+  private static final class StatementTracker extends DefaultExecuteListener {
+    private static final long serialVersionUID = 1L;
+
+    private transient volatile Statement running;
+    private volatile boolean cancelled;
+
+    @Override
+    public void executeStart(final ExecuteContext ctx) {
+      running = ctx.statement();
+      if (cancelled) {
+        cancel();
+      }
+    }
+
+    @Override
+    public void executeEnd(final ExecuteContext ctx) {
+      running = null;
+    }
+
+    void cancel() {
+      cancelled = true;
+      Statement statement = running;
+      if (null != statement) {
+        try {
+          statement.cancel();
+        } catch (SQLException e) {
+          logger.debug("Cancelling statement of parallel query", e);
+        }
+      }
+    }
+  }
+}
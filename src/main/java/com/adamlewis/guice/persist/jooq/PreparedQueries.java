@@ -0,0 +1,461 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.io.Closeable;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jooq.BindingSetStatementContext;
+import org.jooq.Configuration;
+import org.jooq.Converter;
+import org.jooq.DSLContext;
+import org.jooq.DataType;
+import org.jooq.Field;
+import org.jooq.Param;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.Select;
+import org.jooq.conf.ParamType;
+import org.jooq.conf.Settings;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+/**
+ * Renders repeated query shapes once, rather than on every execution:
+ * <pre>
+ *   private final PreparedQuery userById =
+ *       preparedQueries.prepare(dsl -&gt; dsl.selectFrom(USER).where(USER.ID.eq(DSL.param(Long.class))));
+ *
+ *   UserRecord user = userById.fetchOne(id).into(USER);
+ * </pre>
+ * Every bind value of the shape is a placeholder, bound by position with the values passed on execution; use
+ * {@code DSL.inline(...)} for constants.  Values are bound through the {@link org.jooq.Binding} of their placeholder's
+ * data type, as jOOQ itself would bind them, so converted, enum and custom-bound types work.  A shape is rendered the
+ * first time it runs with a given configuration, i.e. once per persistence unit or
+ * {@link JooqPersistModule#tenantSchemas(String, int) tenant}, and the SQL is kept for the
+ * {@link JooqPersistModule#preparedQueryCache(int) most recently used} shapes.  Executions only bind values.  A query
+ * prepared with {@code keepStatement} also keeps its JDBC statement open until the unit of work returns its
+ * connection, so repeated executions within a unit of work do not prepare it again.
+ * <p>
+ * Prepared queries run in the current unit of work and count against its statement budget, metrics and traces.  They
+ * read through the JDBC driver, so only the execute listeners of an injected configuration see their fetches; they
+ * are not cached in the {@link ResultCache} or {@link RecordCache}.
+ */
+@Singleton
+public final class PreparedQueries {
+  private final JooqPersistService persistService;
+  private final Segment[] segments;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  @Inject
+  PreparedQueries(final JooqPersistService persistService, final JooqPersistOptions options) {
+    this.persistService = persistService;
+    int maximumSize = options.getPreparedQueryCacheSize();
+    // independently locked segments, so concurrent lookups rarely contend
+    int count = Math.min(16, maximumSize);
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(maximumSize / count + (i < maximumSize % count ? 1 : 0));
+    }
+  }
+
+  /**
+   * @param shape builds the query, on the context of the unit of work it is first executed in
+   */
+  public PreparedQuery prepare(final Function<DSLContext, ? extends Select<?>> shape) {
+    return prepare(shape, false);
+  }
+
+  /**
+   * @param shape builds the query, on the context of the unit of work it is first executed in
+   * @param keepStatement true to keep the JDBC statement open until the unit of work ends
+   */
+  public PreparedQuery prepare(final Function<DSLContext, ? extends Select<?>> shape, final boolean keepStatement) {
+    return new PreparedQuery(this, shape, keepStatement);
+  }
+
+  /**
+   * @return the number of rendered shapes held
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  Result<Record> fetch(final PreparedQuery query, final Object[] values) {
+    DSLContext dsl = persistService.get();
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    Rendered rendered = rendered(query, dsl);
+    if (values.length != rendered.types.length) {
+      throw new IllegalArgumentException("Prepared query takes " + rendered.types.length + " bind values, got "
+                                         + values.length);
+    }
+    // batched DML must be flushed before reading, which a kept statement would not do
+    boolean keep = query.isKeepStatement() && !conn.isBatching();
+    Connection connection = conn.acquire();
+    try {
+      PreparedStatement statement = keep ? conn.getKeptStatement(rendered.sql) : null;
+      if (null == statement) {
+        statement = connection.prepareStatement(rendered.sql);
+        if (keep) {
+          conn.keepStatement(rendered.sql, statement);
+        }
+      }
+      try {
+        return execute(dsl, conn, statement, rendered, values);
+      } finally {
+        if (!keep) {
+          statement.close();
+        }
+      }
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot execute prepared query", e);
+    } finally {
+      conn.release(connection);
+    }
+  }
+
+  private static Result<Record> execute(final DSLContext dsl, final UnitOfWorkConnectionProvider conn,
+                                        final PreparedStatement statement, final Rendered rendered,
+                                        final Object[] values) throws SQLException {
+    // resources a binding created for its value, freed once the query ran
+    List<AutoCloseable> resources = new ArrayList<AutoCloseable>();
+    try {
+      for (int i = 0; i < values.length; i++) {
+        bind(dsl.configuration(), statement, i + 1, rendered.types[i], values[i], resources);
+      }
+      return execute(dsl, conn, statement, rendered);
+    } finally {
+      free(resources);
+    }
+  }
+
+  private static Result<Record> execute(final DSLContext dsl, final UnitOfWorkConnectionProvider conn,
+                                        final PreparedStatement statement, final Rendered rendered)
+      throws SQLException {
+    if (conn.hasLimits()) {
+      conn.checkLimits(statement);
+    }
+    QueryTrace trace = conn.getTrace();
+    if (null != trace) {
+      trace.executionStarted();
+    }
+    long startedAt = conn.isTimed() ? System.nanoTime() : 0;
+    Result<Record> result;
+    try {
+      // fetching closes the result set
+      ResultSet resultSet = statement.executeQuery();
+      result = rendered.fields.length == 0 ? dsl.fetch(resultSet) : dsl.fetch(resultSet, rendered.fields);
+    } finally {
+      if (conn.isTimed()) {
+        conn.queryExecuted(System.nanoTime() - startedAt);
+      }
+    }
+    if (null != trace) {
+      trace.executionEnded(rendered.sql);
+    }
+    return result;
+  }
+
+  private static <T> void bind(final Configuration configuration, final PreparedStatement statement, final int index,
+                               final DataType<T> type, final Object value, final List<AutoCloseable> resources)
+      throws SQLException {
+    type.getBinding().set(new BindContext<T>(configuration, statement, index, type.convert(value), resources));
+  }
+
+  private static void free(final List<AutoCloseable> resources) throws SQLException {
+    SQLException failure = null;
+    for (AutoCloseable resource : resources) {
+      try {
+        resource.close();
+      } catch (Exception e) {
+        if (null == failure) {
+          failure = new SQLException("Cannot free bind value", e);
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (null != failure) {
+      throw failure;
+    }
+  }
+
+  private Rendered rendered(final PreparedQuery query, final DSLContext dsl) {
+    Key key = new Key(query, dsl.configuration());
+    Segment segment = segmentFor(key);
+    Rendered rendered = segment.get(key);
+    if (null != rendered) {
+      hits.increment();
+      return rendered;
+    }
+    misses.increment();
+    rendered = render(query, dsl);
+    segment.put(key, rendered);
+    return rendered;
+  }
+
+  private static Rendered render(final PreparedQuery query, final DSLContext dsl) {
+    Select<?> select = query.getShape().apply(dsl);
+    List<Param<?>> params = new ArrayList<Param<?>>(select.getParams().values());
+    if (params.size() != select.getBindValues().size()) {
+      throw new IllegalArgumentException("Each placeholder of a prepared query must occur once: " + select);
+    }
+    DataType<?>[] types = new DataType<?>[params.size()];
+    for (int i = 0; i < types.length; i++) {
+      types[i] = params.get(i).getDataType();
+    }
+    return new Rendered(select.getSQL(ParamType.INDEXED), types, select.getSelect().toArray(new Field<?>[0]));
+  }
+
+  private Segment segmentFor(final Key key) {
+    int hash = key.hashCode();
+    return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % segments.length];
+  }
+
+  /**
+   * A query rendered with one configuration; the configuration is compared by identity.
+   */
+  private static final class Key {
+    private final PreparedQuery query;
+    private final Configuration configuration;
+
+    private Key(final PreparedQuery query, final Configuration configuration) {
+      this.query = query;
+      this.configuration = configuration;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return query == other.query && configuration == other.configuration;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(query) + System.identityHashCode(configuration);
+    }
+  }
+
+  /**
+   * What a {@link org.jooq.Binding} needs to set one bind value; jOOQ's own implementation is not public.
+   */
+  private static final class BindContext<U> implements BindingSetStatementContext<U> {
+    private final Configuration configuration;
+    private final PreparedStatement statement;
+    private final int index;
+    private final U value;
+    private final List<AutoCloseable> resources;
+    private final Map<Object, Object> data = new HashMap<Object, Object>();
+
+    private BindContext(final Configuration configuration, final PreparedStatement statement, final int index,
+                        final U value, final List<AutoCloseable> resources) {
+      this.configuration = configuration;
+      this.statement = statement;
+      this.index = index;
+      this.value = value;
+      this.resources = resources;
+    }
+
+    @Override
+    public PreparedStatement statement() {
+      return statement;
+    }
+
+    @Override
+    public int index() {
+      return index;
+    }
+
+    @Override
+    public U value() {
+      return value;
+    }
+
+    @Override
+    public <T> BindingSetStatementContext<T> convert(final Converter<? extends T, ? super U> converter) {
+      return new BindContext<T>(configuration, statement, index, converter.to(value), resources);
+    }
+
+    @Override
+    public Array autoFree(final Array array) {
+      resources.add(array::free);
+      return array;
+    }
+
+    @Override
+    public Blob autoFree(final Blob blob) {
+      resources.add(blob::free);
+      return blob;
+    }
+
+    @Override
+    public Clob autoFree(final Clob clob) {
+      resources.add(clob::free);
+      return clob;
+    }
+
+    @Override
+    public SQLXML autoFree(final SQLXML xml) {
+      resources.add(xml::free);
+      return xml;
+    }
+
+    @Override
+    public <R extends Closeable> R autoClose(final R closeable) {
+      resources.add(closeable::close);
+      return closeable;
+    }
+
+    @Override
+    public <R extends AutoCloseable> R autoClose(final R closeable) {
+      resources.add(closeable);
+      return closeable;
+    }
+
+    @Override
+    public Configuration configuration() {
+      return configuration;
+    }
+
+    @Override
+    public DSLContext dsl() {
+      return DSL.using(configuration);
+    }
+
+    @Override
+    public Settings settings() {
+      return configuration.settings();
+    }
+
+    @Override
+    public SQLDialect dialect() {
+      return configuration.dialect();
+    }
+
+    @Override
+    public SQLDialect family() {
+      return configuration.family();
+    }
+
+    @Override
+    public Map<Object, Object> data() {
+      return data;
+    }
+
+    @Override
+    public Object data(final Object key) {
+      return data.get(key);
+    }
+
+    @Override
+    public Object data(final Object key, final Object value) {
+      return data.put(key, value);
+    }
+  }
+
+  private static final class Rendered {
+    private final String sql;
+    private final DataType<?>[] types;
+    private final Field<?>[] fields;
+
+    private Rendered(final String sql, final DataType<?>[] types, final Field<?>[] fields) {
+      this.sql = sql;
+      this.types = types;
+      this.fields = fields;
+    }
+  }
+
+  /**
+   * LRU map of one part of the cache, guarded by its lock.
+   */
+  private static final class Segment {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Key, Rendered> entries;
+
+    private Segment(final int capacity) {
+      this.entries = new LinkedHashMap<Key, Rendered>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Rendered> eldest) {
+          return size() > capacity;
+        }
+      };
+    }
+
+    private Rendered get(final Key key) {
+      lock.lock();
+      try {
+        return entries.get(key);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void put(final Key key, final Rendered rendered) {
+      lock.lock();
+      try {
+        entries.put(key, rendered);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private int size() {
+      lock.lock();
+      try {
+        return entries.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
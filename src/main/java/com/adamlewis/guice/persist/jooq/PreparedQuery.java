@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.function.Function;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.Select;
+import org.jooq.exception.TooManyRowsException;
+
+/**
+ * A query shape rendered once and then executed with new bind values, see {@link PreparedQueries}.  Thread-safe; meant
+ * to be created once and kept, e.g. in a field.
+ */
+public final class PreparedQuery {
+  private final PreparedQueries preparedQueries;
+  private final Function<DSLContext, ? extends Select<?>> shape;
+  private final boolean keepStatement;
+
+  PreparedQuery(final PreparedQueries preparedQueries, final Function<DSLContext, ? extends Select<?>> shape,
+                final boolean keepStatement) {
+    this.preparedQueries = preparedQueries;
+    this.shape = shape;
+    this.keepStatement = keepStatement;
+  }
+
+  Function<DSLContext, ? extends Select<?>> getShape() {
+    return shape;
+  }
+
+  /**
+   * @return true if the statement is kept open for the rest of the unit of work
+   */
+  boolean isKeepStatement() {
+    return keepStatement;
+  }
+
+  /**
+   * Executes the query in the current unit of work.
+   *
+   * @param values the bind values, one per bind value of the shape and in the same order
+   * @throws IllegalStateException if no work has begun on the calling thread
+   * @throws IllegalArgumentException if the number of values does not match the shape
+   */
+  public Result<Record> fetch(final Object... values) {
+    return preparedQueries.fetch(this, values);
+  }
+
+  /**
+   * Executes the query in the current unit of work.
+   *
+   * @param values the bind values, one per bind value of the shape and in the same order
+   * @return the only record, null if there is none
+   * @throws TooManyRowsException if there is more than one
+   * @throws IllegalStateException if no work has begun on the calling thread
+   * @throws IllegalArgumentException if the number of values does not match the shape
+   */
+  public Record fetchOne(final Object... values) {
+    Result<Record> result = fetch(values);
+    if (result.size() > 1) {
+      throw new TooManyRowsException("Prepared query returned " + result.size() + " records");
+    }
+    return result.isEmpty() ? null : result.get(0);
+  }
+}
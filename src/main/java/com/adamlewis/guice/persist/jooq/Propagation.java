@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+/**
+ * How a {@link com.google.inject.persist.Transactional} method relates to a transaction that is already active when it
+ * is called.  Without an enclosing transaction all of them begin a new one.
+ *
+ * @see Propagate
+ */
+public enum Propagation {
+  /**
+   * Joins the enclosing transaction; a rollback of the method rolls back the enclosing transaction.  The default.
+   */
+  REQUIRED,
+
+  /**
+   * Runs within the enclosing transaction, behind a JDBC savepoint.  If the method throws an exception it rolls back
+   * on, only its own work is rolled back to the savepoint; the exception still propagates to the caller, who may
+   * handle it and go on.  Within a {@link ReadOnly} transaction there is nothing to roll back and the method joins.
+   */
+  NESTED,
+
+  /**
+   * Suspends the enclosing unit of work and runs in a unit of work and transaction of its own, on a second connection
+   * from the pool.  Its transaction commits or rolls back independently; the enclosing unit of work is restored
+   * afterwards.
+   */
+  REQUIRES_NEW
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import static com.google.inject.matcher.Matchers.annotatedWith;
+import static com.google.inject.matcher.Matchers.any;
+
+import java.lang.annotation.Annotation;
+import java.util.Optional;
+import java.util.Set;
+import javax.sql.DataSource;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.persist.PersistService;
+import com.google.inject.persist.Transactional;
+import com.google.inject.persist.UnitOfWork;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.conf.Settings;
+
+/**
+ * Installs the persistence unit of a {@link JooqPersistModule} qualified by a binding annotation, see
+ * {@link JooqPersistModule#annotatedWith(Class)}.
+ * <p>
+ * Every component of the unit is bound with the annotation, and created from the qualified {@code DataSource} and
+ * {@code SQLDialect}, so that the unit neither needs nor clashes with the unqualified bindings of a default unit
+ * installed next to it.  The extension points ({@code Settings}, listeners, ...) are shared by all units.  The
+ * transaction interceptor of the unit is restricted to methods selecting it with {@link PersistenceUnit}.
+ */
+final class QualifiedJooqPersistModule extends AbstractModule {
+  private final Class<? extends Annotation> qualifier;
+  private final JooqPersistOptions options;
+
+  QualifiedJooqPersistModule(final Class<? extends Annotation> qualifier, final JooqPersistOptions options) {
+    this.qualifier = qualifier;
+    this.options = options;
+  }
+
+  @Override
+  protected void configure() {
+    JooqPersistModule.bindExtensionPoints(binder());
+    Provider<DataSource> dataSource = getProvider(Key.get(DataSource.class, qualifier));
+    Provider<SQLDialect> dialect = getProvider(Key.get(SQLDialect.class, qualifier));
+    Provider<Optional<Settings>> settings = getProvider(Key.get(new TypeLiteral<Optional<Settings>>() {}));
+    Provider<Optional<Configuration>> configuration =
+        getProvider(Key.get(new TypeLiteral<Optional<Configuration>>() {}));
+    Provider<Optional<MetricsListener>> metrics = getProvider(Key.get(new TypeLiteral<Optional<MetricsListener>>() {}));
+    Provider<Set<WarmUpQuery>> warmUpQueries = getProvider(Key.get(new TypeLiteral<Set<WarmUpQuery>>() {}));
+    Provider<Optional<QueryTraceListener>> traceListener =
+        getProvider(Key.get(new TypeLiteral<Optional<QueryTraceListener>>() {}));
+    Provider<Optional<TenantResolver>> tenantResolver =
+        getProvider(Key.get(new TypeLiteral<Optional<TenantResolver>>() {}));
+    Provider<JooqPersistService> service = getProvider(qualified(JooqPersistService.class));
+    Provider<ResultCache> resultCache = getProvider(qualified(ResultCache.class));
+
+    // qualified units do not use a replica
+    bindSingleton(JooqPersistService.class, () -> new JooqPersistService(
+        dataSource, Optional.empty(), dialect.get(), settings.get(), configuration.get(), options, metrics.get(),
+        resultCache, warmUpQueries.get(), traceListener.get(), tenantResolver.get()));
+    bind(qualified(PersistService.class)).to(qualified(JooqPersistService.class));
+    bind(qualified(UnitOfWork.class)).to(qualified(JooqPersistService.class));
+    bind(qualified(DSLContext.class)).toProvider(qualified(JooqPersistService.class));
+    bindSingleton(TransactionPropagation.class, () -> new TransactionPropagation(service.get()));
+    bindSingleton(ResultCache.class, () -> new ResultCache(service.get(), options));
+    bindSingleton(QueryStreams.class, () -> new QueryStreams(service.get()));
+    bindSingleton(TransactionSynchronizations.class, () -> new TransactionSynchronizations(service.get(), options));
+    bindSingleton(PreparedQueries.class, () -> new PreparedQueries(service.get(), options));
+    bindSingleton(RecordCache.class, () -> new RecordCache(service.get()));
+    bindSingleton(BulkLoader.class, () -> new BulkLoader(service.get(), resultCache.get()));
+    bindSingleton(ParallelQueries.class, () -> new ParallelQueries(service.get(), options));
+
+    JdbcLocalTxnInterceptor interceptor = new JdbcLocalTxnInterceptor(service, qualifier);
+    bindInterceptor(annotatedWith(Transactional.class), any(), interceptor);
+    bindInterceptor(any(), annotatedWith(Transactional.class), interceptor);
+  }
+
+  private <T> Key<T> qualified(final Class<T> type) {
+    return Key.get(type, qualifier);
+  }
+
+  private <T> void bindSingleton(final Class<T> type, final Provider<T> provider) {
+    bind(qualified(type)).toProvider(provider).in(Singleton.class);
+  }
+}
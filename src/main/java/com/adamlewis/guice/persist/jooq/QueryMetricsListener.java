@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.ExecuteContext;
+import org.jooq.impl.DefaultExecuteListener;
+
+/**
+ * Times the execution of each statement and reports it to the unit of work it ran in.
+ * <p>
+ * Only installed when a {@link MetricsListener} is bound.  Stateless, one instance serves all executions; the start
+ * time of a statement is kept in the data of its {@link ExecuteContext}.
+ */
+class QueryMetricsListener extends DefaultExecuteListener {
+  private static final long serialVersionUID = 1L;
+  private static final String STARTED_AT = QueryMetricsListener.class.getName() + ".startedAt";
+
+  private final JooqPersistService persistService;
+
+  QueryMetricsListener(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  @Override
+  public void executeStart(final ExecuteContext ctx) {
+    ctx.data(STARTED_AT, System.nanoTime());
+  }
+
+  @Override
+  public void executeEnd(final ExecuteContext ctx) {
+    executed(ctx);
+  }
+
+  @Override
+  public void exception(final ExecuteContext ctx) {
+    // a failed statement never reaches executeEnd, but it still took time on the connection
+    executed(ctx);
+  }
+
+  private void executed(final ExecuteContext ctx) {
+    Object startedAt = ctx.data().remove(STARTED_AT);
+    if (null == startedAt) {
+      return;
+    }
+    long durationNanos = System.nanoTime() - (Long) startedAt;
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    if (null != conn) {
+      conn.queryExecuted(durationNanos);
+    }
+  }
+}
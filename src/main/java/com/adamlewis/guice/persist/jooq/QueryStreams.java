@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteContext;
+import org.jooq.Record;
+import org.jooq.ResultQuery;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultExecuteListener;
+
+/**
+ * Runs queries whose results are streamed rather than materialized, each in a unit of work of its own that ends when
+ * the returned {@link Cursor} or {@link Stream} is closed:
+ * <pre>
+ *   try (Stream&lt;UserRecord&gt; users = queryStreams.stream(dsl -&gt; dsl.selectFrom(USER))) {
+ *     users.forEach(writer::write);
+ *   }
+ * </pre>
+ * The stream may outlive the {@code @Transactional} method or the unit of work it was created in, and may be read
+ * from any thread.  Rows are only fetched as they are consumed, a fetch size at a time, so a slow consumer holds back
+ * the database rather than filling the heap.
+ * <p>
+ * The unit of work is read-only and runs on the {@link Replica} if one is bound.  Auto-commit is disabled, which some
+ * drivers (PostgreSQL among them) require to honour the fetch size with a server-side cursor; the transaction is
+ * rolled back when the stream is closed, or when it is exhausted.  A stream that is never closed holds its connection
+ * until it is garbage collected, if ever, so always close it.
+ * <p>
+ * The query runs with the listeners of an injected {@link org.jooq.Configuration}, but outside the caches, metrics,
+ * transaction deadlines and statement budgets of this module; its connection does count against the
+ * {@link JooqPersistModule#readOnlyConcurrencyLimit(ConcurrencyLimit) read-only concurrency limit} until the stream is
+ * closed.
+ */
+@Singleton
+public final class QueryStreams {
+  /**
+   * Number of rows fetched per round trip unless another fetch size is given.
+   */
+  public static final int DEFAULT_FETCH_SIZE = 1000;
+
+  private final JooqPersistService persistService;
+
+  @Inject
+  QueryStreams(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  /**
+   * @param query builds the query to stream from the given context; it must not execute anything itself
+   * @return the rows of the query, to be closed after use
+   */
+  public <R extends Record> Stream<R> stream(final Function<DSLContext, ? extends ResultQuery<R>> query) {
+    return stream(DEFAULT_FETCH_SIZE, query);
+  }
+
+  /**
+   * @param fetchSize number of rows fetched per round trip
+   * @param query builds the query to stream from the given context; it must not execute anything itself
+   * @return the rows of the query, to be closed after use
+   */
+  public <R extends Record> Stream<R> stream(final int fetchSize,
+                                             final Function<DSLContext, ? extends ResultQuery<R>> query) {
+    return cursor(fetchSize, query).stream();
+  }
+
+  /**
+   * @param query builds the query to stream from the given context; it must not execute anything itself
+   * @return a cursor over the rows of the query, to be closed after use
+   */
+  public <R extends Record> Cursor<R> cursor(final Function<DSLContext, ? extends ResultQuery<R>> query) {
+    return cursor(DEFAULT_FETCH_SIZE, query);
+  }
+
+  /**
+   * @param fetchSize number of rows fetched per round trip
+   * @param query builds the query to stream from the given context; it must not execute anything itself
+   * @return a cursor over the rows of the query, to be closed after use
+   */
+  public <R extends Record> Cursor<R> cursor(final int fetchSize,
+                                             final Function<DSLContext, ? extends ResultQuery<R>> query) {
+    if (fetchSize <= 0) {
+      throw new IllegalArgumentException("Fetch size must be positive: " + fetchSize);
+    }
+    UnitOfWorkConnectionProvider conn = persistService.newDetachedWork(true, persistService.currentTenant());
+    try {
+      conn.setAutoCommit(false);
+      EndOfStream endOfStream = new EndOfStream(conn);
+      ResultQuery<R> streamed = query.apply(DSL.using(persistService.detachedConfiguration(conn, endOfStream)));
+      Cursor<R> cursor = streamed.fetchSize(fetchSize).fetchLazy();
+      endOfStream.streaming = true;
+      if (cursor.isClosed()) {
+        conn.reclaim();
+      }
+      return cursor;
+    } catch (RuntimeException | Error e) {
+      conn.reclaim();
+      throw e;
+    }
+  }
+
+  /**
+   * Ends the unit of work of a stream once jOOQ is done with its query, i.e. when the cursor is closed.  This may
+   * happen on another thread than the one that opened the cursor.  Only the end of the streamed query counts, which is
+   * the only one still running once the cursor has been returned.
+   */
+  private static final class EndOfStream extends DefaultExecuteListener {
+    private static final long serialVersionUID = 1L;
+
+    private final transient UnitOfWorkConnectionProvider conn;
+    private volatile boolean streaming;
+
+    EndOfStream(final UnitOfWorkConnectionProvider conn) {
+      this.conn = conn;
+    }
+
+    @Override
+    public void end(final ExecuteContext ctx) {
+      if (streaming) {
+        conn.reclaim();
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The statements executed in one traced unit of work, grouped by shape: their SQL with literals replaced by bind
+ * markers and lists of bind markers collapsed, so that the same query with other values or a longer {@code IN} list
+ * counts as a repetition.
+ * <p>
+ * Traces are taken for a sample of the units of work, see {@link JooqPersistModule#traceQueries(int, int, int)}, and
+ * handed to the {@link QueryTraceListener} when the unit of work ends if a shape was repeated too often, the usual
+ * sign of an N+1 query, or too many statements were executed.  At most {@value #MAX_SHAPES} shapes are kept per unit of
+ * work; statements of further shapes are only counted.
+ */
+public final class QueryTrace {
+  /**
+   * Number of distinct shapes kept per unit of work.
+   */
+  public static final int MAX_SHAPES = 64;
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+  private static final Pattern BIND_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+
+  private final int repeatThreshold;
+  private final int statementThreshold;
+  private final Map<String, Shape> shapes = new HashMap<String, Shape>();
+  private Method method;
+  private int statements;
+  private int untrackedStatements;
+  private long totalNanos;
+  private long executionStartedAt;
+
+  QueryTrace(final int repeatThreshold, final int statementThreshold) {
+    this.repeatThreshold = repeatThreshold;
+    this.statementThreshold = statementThreshold;
+  }
+
+  void setMethod(final Method method) {
+    this.method = method;
+  }
+
+  void executionStarted() {
+    executionStartedAt = System.nanoTime();
+  }
+
+  void executionEnded(final String sql) {
+    long nanos = System.nanoTime() - executionStartedAt;
+    statements++;
+    totalNanos += nanos;
+    String normalized = normalize(sql);
+    Shape shape = shapes.get(normalized);
+    if (null == shape) {
+      if (shapes.size() >= MAX_SHAPES) {
+        untrackedStatements++;
+        return;
+      }
+      shape = new Shape(normalized, countBindMarkers(sql));
+      shapes.put(normalized, shape);
+    }
+    shape.executions++;
+    shape.totalNanos += nanos;
+  }
+
+  static String normalize(final String sql) {
+    String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+    normalized = NUMBER_LITERAL.matcher(normalized).replaceAll("?");
+    Matcher lists = BIND_LIST.matcher(normalized);
+    return lists.find() ? lists.replaceAll("?, ...") : normalized;
+  }
+
+  private static int countBindMarkers(final String sql) {
+    int count = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      if (sql.charAt(i) == '?') {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return true if a shape was repeated or the unit of work executed statements beyond the thresholds
+   */
+  boolean hasFindings() {
+    return statements >= statementThreshold || !getRepeatedShapes().isEmpty();
+  }
+
+  /**
+   * @return the {@code @Transactional} method that began the unit of work, null if it was begun through
+   * {@link com.google.inject.persist.UnitOfWork}
+   */
+  public Method getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the number of statements executed in the unit of work
+   */
+  public int getStatements() {
+    return statements;
+  }
+
+  /**
+   * @return the number of statements whose shape was not kept, because {@value #MAX_SHAPES} shapes already were
+   */
+  public int getUntrackedStatements() {
+    return untrackedStatements;
+  }
+
+  /**
+   * @return the total execution time of the statements
+   */
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * @return the shapes executed, the most executed first
+   */
+  public List<Shape> getShapes() {
+    List<Shape> sorted = new ArrayList<Shape>(shapes.values());
+    sorted.sort((a, b) -> Integer.compare(b.executions, a.executions));
+    return Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * @return the shapes executed at least as many times as the repetition threshold, the most executed first
+   */
+  public List<Shape> getRepeatedShapes() {
+    List<Shape> repeated = new ArrayList<Shape>();
+    for (Shape shape : getShapes()) {
+      if (shape.executions >= repeatThreshold) {
+        repeated.add(shape);
+      }
+    }
+    return repeated;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder description = new StringBuilder("Unit of work");
+    if (null != method) {
+      description.append(" of ").append(method.getDeclaringClass().getName()).append('.').append(method.getName());
+    }
+    description.append(" executed ").append(statements).append(" statements in ")
+        .append(TimeUnit.NANOSECONDS.toMillis(totalNanos)).append(" ms");
+    for (Shape shape : getRepeatedShapes()) {
+      description.append("\n  ").append(shape);
+    }
+    return description.toString();
+  }
+
+  /**
+   * Statements of the same shape executed in the unit of work.
+   */
+  public static final class Shape {
+    private final String sql;
+    private final int bindMarkers;
+    private int executions;
+    private long totalNanos;
+
+    private Shape(final String sql, final int bindMarkers) {
+      this.sql = sql;
+      this.bindMarkers = bindMarkers;
+    }
+
+    /**
+     * @return the normalized SQL
+     */
+    public String getSql() {
+      return sql;
+    }
+
+    /**
+     * @return the number of bind values of the first statement of this shape
+     */
+    public int getBindMarkers() {
+      return bindMarkers;
+    }
+
+    public int getExecutions() {
+      return executions;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+      return executions + "x in " + TimeUnit.NANOSECONDS.toMillis(totalNanos) + " ms: " + sql;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the {@link QueryTrace traces} of units of work that repeated a query or executed too many statements.
+ * <p>
+ * Bind an implementation to install it; without a binding {@link #LOG} is used.  Enable tracing with
+ * {@link JooqPersistModule#traceQueries(int, int, int)}.  Called synchronously by the thread ending the unit of work,
+ * after its connection has been returned.
+ */
+@FunctionalInterface
+public interface QueryTraceListener {
+  /**
+   * Listener logging traces as warnings.
+   */
+  QueryTraceListener LOG = trace -> LoggerFactory.getLogger(QueryTraceListener.class).warn("{}", trace);
+
+  void unitOfWorkTraced(QueryTrace trace);
+}
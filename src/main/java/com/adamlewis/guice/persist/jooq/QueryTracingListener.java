@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.ExecuteContext;
+import org.jooq.impl.DefaultExecuteListener;
+
+/**
+ * Records the statements of traced units of work in their {@link QueryTrace}.
+ * <p>
+ * Stateless, one instance serves all executions; statements of units of work that are not traced cost a thread-local
+ * lookup.
+ */
+class QueryTracingListener extends DefaultExecuteListener {
+  private static final long serialVersionUID = 1L;
+
+  private final JooqPersistService persistService;
+
+  QueryTracingListener(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  @Override
+  public void executeStart(final ExecuteContext ctx) {
+    QueryTrace trace = trace();
+    if (null != trace) {
+      trace.executionStarted();
+    }
+  }
+
+  @Override
+  public void executeEnd(final ExecuteContext ctx) {
+    QueryTrace trace = trace();
+    if (null != trace) {
+      String sql = ctx.sql();
+      trace.executionEnded(null != sql ? sql : String.join("; ", ctx.batchSQL()));
+    }
+  }
+
+  private QueryTrace trace() {
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    return null == conn ? null : conn.getTrace();
+  }
+}
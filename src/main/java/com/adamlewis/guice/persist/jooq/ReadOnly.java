@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link com.google.inject.persist.Transactional} method (or all such methods of a class) as read-only.
+ * <p>
+ * A unit of work begun by a read-only method takes its connection from the {@link Replica} {@code DataSource} if one
+ * is bound, or from the primary one otherwise, and flags it with {@link java.sql.Connection#setReadOnly(boolean)}.
+ * Calling a read-write {@code @Transactional} method from within a read-only transaction fails with an
+ * {@link IllegalStateException}.  Read-only methods called from within a read-write transaction simply join it.
+ * <p>
+ * A read-only method starting a transaction in a unit of work begun elsewhere, e.g. by the {@code PersistFilter},
+ * keeps the connection of that unit of work: it is flagged read-only for the duration of the transaction, but it is
+ * not taken from the {@code Replica}, nor counted against the read-only concurrency limit.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Inherited
+public @interface ReadOnly {
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jooq.Condition;
+import org.jooq.Field;
+import org.jooq.Table;
+import org.jooq.UniqueKey;
+import org.jooq.UpdatableRecord;
+import org.jooq.impl.DSL;
+
+/**
+ * First-level cache of the records loaded within the current unit of work, by table and primary key.
+ * <p>
+ * Enabled with {@link JooqPersistModule#recordCache()}.  Every {@link UpdatableRecord} that a query of the unit of work
+ * loads through the injected {@code DSLContext} is kept, so loading the same row by primary key again, e.g. from
+ * another DAO, costs no round trip:
+ * <pre>
+ *   UserRecord user = recordCache.fetchById(USER, userId);
+ * </pre>
+ * Any insert, update, delete or merge on a table drops the cached records of that table; statements whose tables are
+ * unknown (plain SQL, stored procedures) and rolled back transactions drop all of them.  The cache is discarded when the
+ * unit of work ends.  Cached records are shared: all callers of the unit of work get the same instance.
+ * <p>
+ * Without {@link JooqPersistModule#recordCache()} nothing is cached and {@link #fetchById(Table, Object...)} always
+ * queries the database.
+ */
+@Singleton
+public final class RecordCache {
+  private final JooqPersistService persistService;
+
+  @Inject
+  RecordCache(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  /**
+   * @param key the primary key values, in the order of the primary key columns
+   * @return the cached record, or null if it has not been loaded in the current unit of work
+   * @throws IllegalStateException if no work has begun on the calling thread
+   */
+  public <R extends UpdatableRecord<R>> R get(final Table<R> table, final Object... key) {
+    UnitOfWorkConnectionProvider conn = connection();
+    if (!conn.hasRecords()) {
+      return null;
+    }
+    return table.getRecordType().cast(conn.getRecords().get(table, UnitOfWorkRecords.key(convert(table, key))));
+  }
+
+  /**
+   * Returns the record with the given primary key, loading it only if it has not been loaded in the current unit of
+   * work yet.
+   *
+   * @param key the primary key values, in the order of the primary key columns
+   * @return the record, or null if there is no such row
+   * @throws IllegalStateException if no work has begun on the calling thread
+   */
+  public <R extends UpdatableRecord<R>> R fetchById(final Table<R> table, final Object... key) {
+    R record = get(table, key);
+    if (null != record) {
+      return record;
+    }
+    return persistService.get().selectFrom(table).where(primaryKeyEquals(table, key)).fetchOne();
+  }
+
+  /**
+   * Drops all cached records of the current unit of work, e.g. after modifying tables behind jOOQ's back.
+   */
+  public void clear() {
+    UnitOfWorkConnectionProvider conn = connection();
+    if (conn.hasRecords()) {
+      conn.getRecords().clear();
+    }
+  }
+
+  /**
+   * @return the key values converted to the types of the primary key columns, as they are in loaded records
+   */
+  private static Object[] convert(final Table<?> table, final Object... key) {
+    List<? extends Field<?>> fields = primaryKeyFields(table, key);
+    Object[] converted = new Object[key.length];
+    for (int i = 0; i < key.length; i++) {
+      converted[i] = fields.get(i).getDataType().convert(key[i]);
+    }
+    return converted;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Condition primaryKeyEquals(final Table<?> table, final Object... key) {
+    List<? extends Field<?>> fields = primaryKeyFields(table, key);
+    Condition condition = DSL.noCondition();
+    for (int i = 0; i < key.length; i++) {
+      condition = condition.and(((Field<Object>) fields.get(i)).eq(key[i]));
+    }
+    return condition;
+  }
+
+  private static List<? extends Field<?>> primaryKeyFields(final Table<?> table, final Object... key) {
+    UniqueKey<?> primaryKey = table.getPrimaryKey();
+    if (null == primaryKey) {
+      throw new IllegalArgumentException("Table " + table + " has no primary key");
+    }
+    List<? extends Field<?>> fields = primaryKey.getFields();
+    if (fields.size() != key.length) {
+      throw new IllegalArgumentException("Primary key of " + table + " has " + fields.size() + " columns, got "
+                                         + key.length + " values");
+    }
+    return fields;
+  }
+
+  private UnitOfWorkConnectionProvider connection() {
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    if (null == conn) {
+      throw new IllegalStateException("Requested record cache outside work unit. "
+              + "Try calling UnitOfWork.begin() first, use @Transactional annotation"
+              + "or use a PersistFilter if you are inside a servlet environment.");
+    }
+    return conn;
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.ResultQuery;
+import org.jooq.Table;
+
+/**
+ * Cache of query results shared by all units of work, invalidated by table.
+ * <p>
+ * Installed with {@link JooqPersistModule#resultCache(int, long, java.util.concurrent.TimeUnit)}.  Results are cached
+ * by their SQL and bind values, for at most the configured time to live; beyond the maximum size the least recently
+ * used are evicted.  Whenever a transaction that modified a table commits, the cached results of every query reading
+ * that table become invalid; statements whose tables are not known (plain SQL, stored procedures) invalidate all
+ * results, and queries whose tables are not known are not cached.  A transaction that has modified a table reads it
+ * from the database until it ends, so its uncommitted writes neither get cached nor hidden from it.  Results are only
+ * cached from queries run outside of a transaction on the primary data source: within a transaction, or on a
+ * {@link Replica}, a query may read data older than the invalidations seen so far.  Such queries are still served
+ * cached results.
+ * <p>
+ * Cached results are shared between threads and detached: they must not be modified.  Use it for reference data and
+ * other reads that are repeated much more often than their tables change.  Without the module option
+ * {@link #fetch(ResultQuery)} always queries the database.
+ */
+@Singleton
+public final class ResultCache {
+  // stands for "any table" in sets of modified tables
+  static final String ALL_TABLES = "*";
+
+  private final JooqPersistService persistService;
+  private final Segment[] segments;
+  private final long timeToLiveNanos;
+  private final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong allTablesVersion = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  @Inject
+  ResultCache(final JooqPersistService persistService, final JooqPersistOptions options) {
+    this.persistService = persistService;
+    this.timeToLiveNanos = options.getResultCacheTimeToLiveNanos();
+    int maximumSize = options.getResultCacheSize();
+    // independently locked segments, so concurrent lookups rarely contend
+    int count = Math.min(16, maximumSize);
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(maximumSize / count + (i < maximumSize % count ? 1 : 0));
+    }
+  }
+
+  /**
+   * @return true if the cache was installed with the module
+   */
+  boolean isEnabled() {
+    return segments.length > 0;
+  }
+
+  /**
+   * Returns the cached result of the query, executing it in the current unit of work if there is none.
+   *
+   * @throws IllegalStateException if no work has begun on the calling thread
+   */
+  public <R extends Record> Result<R> fetch(final ResultQuery<R> query) {
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    if (!isEnabled() || null == conn) {
+      return query.fetch();
+    }
+    // rendering the key collects the tables the query reads
+    StatementTables statementTables = conn.getStatementTables();
+    statementTables.reset();
+    // with tenantSearchPath() the SQL is the same for all tenants
+    Key key = new Key(conn.getTenant(), query.getSQL(), query.getBindValues(), query.getRecordType());
+    String[] tables = statementTables.getReferenced().toArray(new String[0]);
+    // without knowing its tables (plain SQL) a result could never be invalidated
+    if (tables.length == 0 || conn.hasPendingModifications(tables)) {
+      return query.fetch();
+    }
+
+    Segment segment = segmentFor(key);
+    Entry entry = segment.get(key);
+    if (null != entry && isValid(entry)) {
+      hits.increment();
+      @SuppressWarnings("unchecked")
+      Result<R> result = (Result<R>) entry.result;
+      return result;
+    }
+    misses.increment();
+    // the snapshot of a transaction, or the data of a replica, may be older than the versions read now
+    if (!conn.getAutoCommit() || persistService.readsReplica(conn)) {
+      return query.fetch();
+    }
+    // versions are read before executing; an invalidation while the query runs makes the new entry invalid
+    long[] versions = versions(tables);
+    long allVersion = allTablesVersion.get();
+    Result<R> result = query.fetch();
+    result.detach();
+    segment.put(key, new Entry(result, tables, versions, allVersion, System.nanoTime() + timeToLiveNanos));
+    return result;
+  }
+
+  /**
+   * Invalidates the cached results of all queries reading any of the given tables.  Call this after modifying tables
+   * behind jOOQ's back, e.g. from another application.
+   */
+  public void invalidate(final Table<?>... tables) {
+    List<String> keys = new ArrayList<String>(tables.length);
+    for (Table<?> table : tables) {
+      keys.add(StatementTables.key(table.getName()));
+    }
+    invalidate(keys);
+  }
+
+  public void invalidateAll() {
+    allTablesVersion.incrementAndGet();
+  }
+
+  /**
+   * @return the number of results currently held, including ones that are no longer valid but not yet evicted
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Invalidates results reading the given tables, identified by {@link StatementTables#key(String)}, or all results if
+   * the collection holds {@link #ALL_TABLES}.
+   */
+  void invalidate(final Collection<String> tableKeys) {
+    if (tableKeys.contains(ALL_TABLES)) {
+      invalidateAll();
+      return;
+    }
+    for (String table : tableKeys) {
+      AtomicLong version = tableVersions.get(table);
+      if (null == version) {
+        version = new AtomicLong();
+        AtomicLong existing = tableVersions.putIfAbsent(table, version);
+        if (null != existing) {
+          version = existing;
+        }
+      }
+      version.incrementAndGet();
+    }
+  }
+
+  private long[] versions(final String[] tables) {
+    long[] versions = new long[tables.length];
+    for (int i = 0; i < tables.length; i++) {
+      AtomicLong version = tableVersions.get(tables[i]);
+      versions[i] = null == version ? 0 : version.get();
+    }
+    return versions;
+  }
+
+  private boolean isValid(final Entry entry) {
+    if (entry.expiresAt - System.nanoTime() <= 0 || entry.allVersion != allTablesVersion.get()) {
+      return false;
+    }
+    return Arrays.equals(entry.versions, versions(entry.tables));
+  }
+
+  private Segment segmentFor(final Key key) {
+    int hash = key.hashCode();
+    return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % segments.length];
+  }
+
+  private static final class Key {
+    // null for the default schema
+    private final String tenant;
+    private final String sql;
+    private final List<Object> bindValues;
+    private final Class<?> recordType;
+    private final int hash;
+
+    private Key(final String tenant, final String sql, final List<Object> bindValues, final Class<?> recordType) {
+      this.tenant = tenant;
+      this.sql = sql;
+      this.bindValues = bindValues;
+      this.recordType = recordType;
+      this.hash = 31 * (31 * (31 * Objects.hashCode(tenant) + sql.hashCode()) + bindValues.hashCode())
+          + recordType.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && Objects.equals(tenant, other.tenant) && sql.equals(other.sql)
+          && bindValues.equals(other.bindValues) && recordType == other.recordType;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+    private final Result<?> result;
+    private final String[] tables;
+    private final long[] versions;
+    private final long allVersion;
+    private final long expiresAt;
+
+    private Entry(final Result<?> result, final String[] tables, final long[] versions, final long allVersion,
+                  final long expiresAt) {
+      this.result = result;
+      this.tables = tables;
+      this.versions = versions;
+      this.allVersion = allVersion;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * LRU map of one part of the cache, guarded by its lock.
+   */
+  private static final class Segment {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Key, Entry> entries;
+
+    private Segment(final int capacity) {
+      this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+          return size() > capacity;
+        }
+      };
+    }
+
+    private Entry get(final Key key) {
+      lock.lock();
+      try {
+        return entries.get(key);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void put(final Key key, final Entry entry) {
+      lock.lock();
+      try {
+        entries.put(key, entry);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private int size() {
+      lock.lock();
+      try {
+        return entries.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Re-runs a {@link com.google.inject.persist.Transactional} method (or all such methods of a class) whose transaction
+ * failed with a serialization failure (SQLSTATE 40001) or a deadlock (SQLSTATE 40P01).
+ * <p>
+ * The transaction is rolled back and the whole method invoked again in a new transaction, after a randomized,
+ * exponentially growing pause, until it succeeds or {@link #attempts()} invocations have been made; the last failure
+ * is then thrown.  Only the outermost transaction is retried, a method joining an enclosing transaction fails with it.
+ * The method must therefore be safe to run more than once: it should not have side effects outside the database.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Inherited
+public @interface Retryable {
+  /**
+   * @return the maximum number of invocations, including the first one
+   */
+  int attempts() default 3;
+
+  /**
+   * @return the upper bound of the pause before the first retry, doubled for every further retry
+   */
+  long backoffMillis() default 10;
+
+  /**
+   * @return the upper bound of any pause between retries
+   */
+  long maxBackoffMillis() default 1000;
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The schema each pooled connection is switched to, see {@link JooqPersistModule#tenantSearchPath()}.
+ * <p>
+ * Connections go back to the pool still switched to the schema of the tenant they served, and are only switched
+ * again when a unit of work of another tenant, or of none, takes them: a tenant served over and over by the same
+ * connections costs no statements besides its own.  The schema, or on PostgreSQL the whole {@code search_path}, a
+ * connection came with is read once and restored for units of work without a tenant.  Connections are told apart by
+ * the physical connection a pool wraps, and forgotten once the pool discards them.
+ */
+final class SessionSchemas {
+  // true to save the whole search_path rather than the schema, which on PostgreSQL is only its first existing entry
+  private final boolean searchPath;
+  private final Map<Key, Session> sessions = new ConcurrentHashMap<Key, Session>();
+  private final ReferenceQueue<Connection> discarded = new ReferenceQueue<Connection>();
+
+  SessionSchemas(final boolean searchPath) {
+    this.searchPath = searchPath;
+  }
+
+  /**
+   * Switches the given connection to the schema of the given tenant, or back to the schema it came with.
+   *
+   * @param tenant schema of the tenant served, null for the one the connection came with
+   */
+  void switchTo(final Connection connection, final String tenant) throws SQLException {
+    Connection physical = physical(connection);
+    Session session = sessions.get(new Key(physical, null));
+    if (null == session) {
+      if (null == tenant) {
+        return;
+      }
+      String schema = connection.getSchema();
+      if (tenant.equals(schema)) {
+        return;
+      }
+      session = new Session(searchPath ? showSearchPath(connection) : schema);
+      forgetDiscarded();
+      sessions.put(new Key(physical, discarded), session);
+    }
+    // a connection is only used by one unit of work at a time, and handed over by the pool
+    if (Objects.equals(session.tenant, tenant)) {
+      return;
+    }
+    if (null != tenant) {
+      connection.setSchema(tenant);
+    } else if (searchPath) {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("set search_path to " + session.original);
+      }
+    } else {
+      connection.setSchema(session.original);
+    }
+    session.tenant = tenant;
+  }
+
+  private static Connection physical(final Connection connection) throws SQLException {
+    return connection.isWrapperFor(Connection.class) ? connection.unwrap(Connection.class) : connection;
+  }
+
+  private static String showSearchPath(final Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement();
+         ResultSet rs = statement.executeQuery("show search_path")) {
+      rs.next();
+      return rs.getString(1);
+    }
+  }
+
+  private void forgetDiscarded() {
+    for (Object key = discarded.poll(); null != key; key = discarded.poll()) {
+      sessions.remove(key);
+    }
+  }
+
+  private static final class Session {
+    // schema, or search_path, the connection came with
+    private final String original;
+    // schema of the tenant the connection is switched to, null while it is on the original one
+    private String tenant;
+
+    private Session(final String original) {
+      this.original = original;
+    }
+  }
+
+  /**
+   * Weak identity key of a physical connection.
+   */
+  private static final class Key extends WeakReference<Connection> {
+    private final int hash;
+
+    private Key(final Connection connection, final ReferenceQueue<Connection> queue) {
+      super(connection, queue);
+      this.hash = System.identityHashCode(connection);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      Connection connection = get();
+      return o instanceof Key && null != connection && connection == ((Key) o).get();
+    }
+  }
+}
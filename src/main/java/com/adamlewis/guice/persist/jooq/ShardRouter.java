@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import org.jooq.DSLContext;
+
+/**
+ * Selects one of several qualified persistence units, e.g. database shards, by a routing key when a unit of work
+ * begins.  Subclasses map keys to the binding annotations of units installed with
+ * {@link JooqPersistModule#annotatedWith(Class)}:
+ * <pre>
+ *   class CustomerShards extends ShardRouter&lt;Long&gt; {
+ *     protected Class&lt;? extends Annotation&gt; route(Long customerId) {
+ *       return customerId % 2 == 0 ? Even.class : Odd.class;
+ *     }
+ *   }
+ *
+ *   customerShards.inUnitOfWork(customerId, () -&gt; customerShards.get().selectFrom(ORDER).fetch());
+ * </pre>
+ * The routed unit of work is an ordinary unit of work of the selected unit.  Code that runs on whichever unit was
+ * routed to uses {@link Routed} in place of the binding annotation of a unit: {@code @Transactional} methods annotated
+ * with {@code @PersistenceUnit(Routed.class)} join the routed unit of work of the current thread, and an injected
+ * {@code @Routed Provider<DSLContext>} gives its context, so one DAO serves every shard:
+ * <pre>
+ *   &#64;Transactional
+ *   &#64;PersistenceUnit(ShardRouter.Routed.class)
+ *   public List&lt;OrderRecord&gt; orders() {
+ *     return routedContext.get().selectFrom(ORDER).fetch();
+ *   }
+ * </pre>
+ * Each unit keeps its own connections and limits, so a busy shard does not hold back the others.  One routed unit of
+ * work may be open per thread and router at a time; when routers are nested, the innermost routed unit of work is the
+ * one {@code Routed} selects.
+ */
+public abstract class ShardRouter<K> {
+  // innermost routed unit of work of each thread, whichever router began it
+  private static final ThreadLocal<Route> CURRENT = new ThreadLocal<Route>();
+
+  /**
+   * Context of the routed unit of work of the current thread, bound as {@code @Routed DSLContext}.  A constant, so
+   * that every persistence unit may declare the same binding.
+   */
+  static final Provider<DSLContext> ROUTED_CONTEXT = () -> current().unit.get();
+
+  private final ConcurrentMap<Class<? extends Annotation>, JooqPersistService> units =
+      new ConcurrentHashMap<Class<? extends Annotation>, JooqPersistService>();
+  private final ThreadLocal<Route> routed = new ThreadLocal<Route>();
+  private Injector injector;
+
+  /**
+   * Selects the persistence unit of the routed unit of work of the current thread, in {@link PersistenceUnit} or as
+   * the binding annotation of a {@code DSLContext}.
+   */
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target({FIELD, PARAMETER, METHOD})
+  public @interface Routed {
+  }
+
+  @Inject
+  void setInjector(final Injector injector) {
+    this.injector = injector;
+  }
+
+  /**
+   * @return the binding annotation of the persistence unit holding the data of the given key
+   */
+  protected abstract Class<? extends Annotation> route(K key);
+
+  /**
+   * Begins a unit of work on the persistence unit of the given key.
+   *
+   * @throws IllegalStateException if a routed unit of work has already begun on this thread
+   */
+  public void begin(final K key) {
+    if (null != routed.get()) {
+      throw new IllegalStateException("A routed unit of work has already begun on this thread");
+    }
+    Class<? extends Annotation> qualifier = route(key);
+    JooqPersistService unit = unit(qualifier);
+    unit.begin();
+    Route route = new Route(qualifier, unit, CURRENT.get());
+    routed.set(route);
+    CURRENT.set(route);
+  }
+
+  /**
+   * @return the context of the routed unit of work of this thread
+   * @throws IllegalStateException if no routed unit of work has begun on this thread
+   */
+  public DSLContext get() {
+    Route route = routed.get();
+    if (null == route) {
+      throw new IllegalStateException("No routed unit of work has begun on this thread");
+    }
+    return route.unit.get();
+  }
+
+  /**
+   * Ends the routed unit of work of this thread, if any.
+   */
+  public void end() {
+    Route route = routed.get();
+    if (null != route) {
+      routed.remove();
+      if (CURRENT.get() == route) {
+        if (null == route.previous) {
+          CURRENT.remove();
+        } else {
+          CURRENT.set(route.previous);
+        }
+      }
+      route.unit.end();
+    }
+  }
+
+  /**
+   * Runs the given work in a unit of work on the persistence unit of the given key.
+   */
+  public <T> T inUnitOfWork(final K key, final Supplier<T> work) {
+    begin(key);
+    try {
+      return work.get();
+    } finally {
+      end();
+    }
+  }
+
+  private JooqPersistService unit(final Class<? extends Annotation> qualifier) {
+    JooqPersistService unit = units.get(qualifier);
+    if (null == unit) {
+      unit = injector.getInstance(Key.get(JooqPersistService.class, qualifier));
+      units.putIfAbsent(qualifier, unit);
+    }
+    return unit;
+  }
+
+  /**
+   * @return the qualifier of the persistence unit of the routed unit of work of the current thread
+   * @throws IllegalStateException if no routed unit of work has begun on this thread
+   */
+  static Class<? extends Annotation> currentUnit() {
+    return current().qualifier;
+  }
+
+  private static Route current() {
+    Route route = CURRENT.get();
+    if (null == route) {
+      throw new IllegalStateException("No routed unit of work has begun on this thread");
+    }
+    return route;
+  }
+
+  private static final class Route {
+    private final Class<? extends Annotation> qualifier;
+    private final JooqPersistService unit;
+    // routed unit of work this one is nested in, null if none
+    private final Route previous;
+
+    private Route(final Class<? extends Annotation> qualifier, final JooqPersistService unit, final Route previous) {
+      this.qualifier = qualifier;
+      this.unit = unit;
+      this.previous = previous;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Names of the tables referenced by the statement being executed in a unit of work, as collected by
+ * {@link TableReferenceListener} while jOOQ renders it.
+ * <p>
+ * Tables are identified by their unqualified, lower-cased name, so the same table referenced with and without its
+ * schema, or two tables of the same name in different schemas, count as one.  That only ever makes invalidation more
+ * eager than necessary.
+ */
+final class StatementTables {
+  private final Set<String> referenced = new HashSet<String>();
+  private final Set<String> modified = new HashSet<String>();
+
+  static String key(final String tableName) {
+    return tableName.toLowerCase(Locale.ROOT);
+  }
+
+  void reset() {
+    referenced.clear();
+    modified.clear();
+  }
+
+  void add(final String tableName, final boolean modifiedByStatement) {
+    String key = key(tableName);
+    referenced.add(key);
+    if (modifiedByStatement) {
+      modified.add(key);
+    }
+  }
+
+  /**
+   * @return all tables the statement reads or writes
+   */
+  Set<String> getReferenced() {
+    return referenced;
+  }
+
+  /**
+   * @return the tables the statement inserts into, updates, deletes from or merges into
+   */
+  Set<String> getModified() {
+    return modified;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.Table;
+import org.jooq.VisitContext;
+import org.jooq.impl.DefaultVisitListener;
+
+/**
+ * Collects the tables a statement references into the {@link StatementTables} of the current unit of work while the
+ * statement is rendered.  Only installed when a cache needs to know which tables statements read and write.
+ */
+// jOOQ deprecates Clause without offering a replacement, and it is still the only way to tell a table reference from
+// a table declaration, or the table a DML statement writes from the ones it reads.  It is referenced by its qualified
+// name because Java 8 cannot suppress the warning on an import.
+@SuppressWarnings("deprecation")
+class TableReferenceListener extends DefaultVisitListener {
+  private final JooqPersistService persistService;
+
+  TableReferenceListener(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  @Override
+  public void visitStart(final VisitContext ctx) {
+    if (ctx.clause() != org.jooq.Clause.TABLE_REFERENCE || !(ctx.queryPart() instanceof Table)) {
+      return;
+    }
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    if (null != conn) {
+      conn.getStatementTables().add(((Table<?>) ctx.queryPart()).getName(), isModified(ctx.clauses()));
+    }
+  }
+
+  private static boolean isModified(final org.jooq.Clause[] clauses) {
+    for (org.jooq.Clause clause : clauses) {
+      switch (clause) {
+        case INSERT_INSERT_INTO:
+        case UPDATE_UPDATE:
+        case DELETE_DELETE:
+        case MERGE_MERGE_INTO:
+          return true;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+}
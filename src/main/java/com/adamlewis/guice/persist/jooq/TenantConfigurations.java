@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jooq.DSLContext;
+import org.jooq.conf.MappedSchema;
+import org.jooq.conf.RenderMapping;
+import org.jooq.conf.Settings;
+import org.jooq.conf.SettingsTools;
+import org.jooq.impl.DSL;
+
+/**
+ * Per tenant contexts rendering the tenant's schema in place of the default one, see
+ * {@link JooqPersistModule#tenantSchemas(String, int)}.
+ * <p>
+ * Each context is derived once from the shared one, keeping its listeners and providers, and kept for the tenants
+ * most recently used, so beginning a unit of work allocates no configuration and renders with a fixed mapping.
+ * Looking up a cached tenant takes no lock; once a new tenant exceeds the maximum, the least recently used ones are
+ * evicted by whichever thread gets to it first.
+ */
+final class TenantConfigurations {
+  private final DSLContext shared;
+  private final String schema;
+  private final int maxTenants;
+  private final Map<String, Tenant> contexts = new ConcurrentHashMap<String, Tenant>();
+  // held while evicting, other threads leave it to the one holding it
+  private final ReentrantLock eviction = new ReentrantLock();
+
+  TenantConfigurations(final DSLContext shared, final String schema, final int maxTenants) {
+    this.shared = shared;
+    this.schema = schema;
+    this.maxTenants = maxTenants;
+  }
+
+  /**
+   * @return the context of the given tenant, created if it is not cached
+   */
+  DSLContext context(final String tenant) {
+    Tenant cached = contexts.get(tenant);
+    if (null == cached) {
+      cached = contexts.computeIfAbsent(tenant, t -> new Tenant(DSL.using(shared.configuration().derive(settings(t)))));
+      if (contexts.size() > maxTenants) {
+        evict();
+      }
+    }
+    cached.lastUsed = System.nanoTime();
+    return cached.context;
+  }
+
+  private void evict() {
+    if (!eviction.tryLock()) {
+      return;
+    }
+    try {
+      while (contexts.size() > maxTenants) {
+        Map.Entry<String, Tenant> eldest = null;
+        for (Map.Entry<String, Tenant> entry : contexts.entrySet()) {
+          if (null == eldest || entry.getValue().lastUsed - eldest.getValue().lastUsed < 0) {
+            eldest = entry;
+          }
+        }
+        contexts.remove(eldest.getKey(), eldest.getValue());
+      }
+    } finally {
+      eviction.unlock();
+    }
+  }
+
+  /**
+   * @return the shared settings with the default schema mapped to the given tenant's
+   */
+  Settings settings(final String tenant) {
+    Settings settings = SettingsTools.clone(shared.settings());
+    if (null == settings.getRenderMapping()) {
+      settings.setRenderMapping(new RenderMapping());
+    }
+    settings.getRenderMapping().getSchemata().add(new MappedSchema().withInput(schema).withOutput(tenant));
+    return settings;
+  }
+
+  int size() {
+    return contexts.size();
+  }
+
+  private static final class Tenant {
+    private final DSLContext context;
+    // System.nanoTime() of the last lookup, only compared for eviction
+    private volatile long lastUsed = System.nanoTime();
+
+    private Tenant(final DSLContext context) {
+      this.context = context;
+    }
+  }
+}
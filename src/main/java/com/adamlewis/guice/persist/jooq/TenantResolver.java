@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+/**
+ * Tells which tenant the calling thread serves, as the name of the tenant's schema; called when a unit of work begins.
+ * <p>
+ * Bind an implementation and enable multi-tenancy with {@link JooqPersistModule#tenantSchemas(String, int)} or
+ * {@link JooqPersistModule#tenantSearchPath()}.
+ */
+@FunctionalInterface
+public interface TenantResolver {
+  /**
+   * @return the schema of the current tenant, null to work in the default schema
+   */
+  String currentSchema();
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Isolation level, deadline and statement budget of the transaction begun by a
+ * {@link com.google.inject.persist.Transactional} method (or all such methods of a class).
+ * <p>
+ * The isolation level is set before the transaction begins and the connection's own level is restored when it ends;
+ * neither costs a driver call unless the level actually changes.  The deadline is enforced through the JDBC query
+ * timeout of every statement, which is set to the time remaining; once it has passed, and once the statement budget
+ * has been used up, further statements fail with a {@link TransactionLimitExceededException} and the transaction rolls
+ * back.
+ * <p>
+ * The attributes only apply to the outermost transaction; joined transactions run under whatever the enclosing one
+ * was given.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Inherited
+public @interface TransactionAttributes {
+  Isolation isolation() default Isolation.DEFAULT;
+
+  /**
+   * @return the time the transaction may take, 0 for no limit
+   */
+  long timeoutMillis() default 0;
+
+  /**
+   * @return the number of statements the transaction may execute, 0 for no limit
+   */
+  int maxStatements() default 0;
+}
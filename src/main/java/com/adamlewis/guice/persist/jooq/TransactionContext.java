@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+/**
+ * Handle on a unit of work, captured on the thread that runs it so it can be reattached on another thread.
+ * <p>
+ * While attached, the {@code DSLContext} and {@code @Transactional} methods on the other thread use the captured unit
+ * of work and its connection, and join its transaction if one is active.  The connection is never used by two threads
+ * at once; a thread executing a query while another one is doing so fails with an {@link IllegalStateException}.
+ * This only detects misuse, it does not order the threads' calls: transaction boundaries set by one thread may fall
+ * between the statements of another, so tasks should be done before their transaction ends.
+ * The unit of work is still ended by the thread that began it.
+ *
+ * @see TransactionPropagation
+ */
+public final class TransactionContext {
+  private static final Scope NO_OP = new Scope() {
+    @Override
+    public void close() {
+    }
+  };
+
+  private final JooqPersistService persistService;
+  private final UnitOfWorkConnectionProvider connection;
+
+  TransactionContext(final JooqPersistService persistService, final UnitOfWorkConnectionProvider connection) {
+    this.persistService = persistService;
+    this.connection = connection;
+  }
+
+  /**
+   * Binds the captured unit of work to the calling thread until the returned scope is closed.  Attaching on the
+   * thread the unit of work is already bound to does nothing.
+   *
+   * @return the scope to close once the calling thread is done with the unit of work
+   * @throws IllegalStateException if another unit of work is bound to the calling thread
+   */
+  public Scope attach() {
+    if (persistService.getConnectionWrapper() == connection) {
+      return NO_OP;
+    }
+    persistService.attach(connection);
+    return new Scope() {
+      @Override
+      public void close() {
+        persistService.detach();
+      }
+    };
+  }
+
+  /**
+   * An attachment of a {@link TransactionContext} to a thread.
+   */
+  public interface Scope extends AutoCloseable {
+    /**
+     * Unbinds the unit of work from the calling thread.
+     */
+    @Override
+    void close();
+  }
+}
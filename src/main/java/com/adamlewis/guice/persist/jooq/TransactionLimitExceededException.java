@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.exception.DataAccessException;
+
+/**
+ * Thrown when a statement is about to run in a transaction that is past the deadline or has used up the statement
+ * budget set with {@link TransactionAttributes}.
+ */
+public class TransactionLimitExceededException extends DataAccessException {
+  private static final long serialVersionUID = 1L;
+
+  TransactionLimitExceededException(final String message) {
+    super(message);
+  }
+}
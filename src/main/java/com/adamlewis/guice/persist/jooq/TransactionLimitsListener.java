@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.ExecuteContext;
+import org.jooq.impl.DefaultExecuteListener;
+
+/**
+ * Applies the deadline and statement budget of the current transaction to each statement right before it executes.
+ * <p>
+ * Stateless, one instance serves all executions; statements outside a transaction with {@link TransactionAttributes}
+ * cost a thread-local lookup.
+ */
+class TransactionLimitsListener extends DefaultExecuteListener {
+  private static final long serialVersionUID = 1L;
+
+  private final JooqPersistService persistService;
+
+  TransactionLimitsListener(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  @Override
+  public void executeStart(final ExecuteContext ctx) {
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    if (null != conn && conn.hasLimits()) {
+      conn.checkLimits(ctx.statement());
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.persist.Transactional;
+
+/**
+ * Transaction metadata of one intercepted method, resolved once and cached by {@link JdbcLocalTxnInterceptor}.
+ * <p>
+ * The rollback decision for an exception only depends on its class, so it is computed once per exception class.
+ */
+final class TransactionPlan {
+
+  @Transactional
+  private static class Internal {
+  }
+
+  private static final Transactional DEFAULT_TRANSACTIONAL = Internal.class.getAnnotation(Transactional.class);
+
+  private static final ClassValue<ConcurrentMap<Method, TransactionPlan>> PLANS =
+      new ClassValue<ConcurrentMap<Method, TransactionPlan>>() {
+        @Override
+        protected ConcurrentMap<Method, TransactionPlan> computeValue(final Class<?> type) {
+          return new ConcurrentHashMap<Method, TransactionPlan>();
+        }
+      };
+
+  private final Class<? extends Exception>[] rollbackOn;
+  private final Class<? extends Exception>[] ignore;
+  private final boolean readOnly;
+  private final int batchSize;
+  // null if the transaction is not retried
+  private final Retryable retryable;
+  private final Propagation propagation;
+  private final int isolation;
+  private final long timeoutNanos;
+  private final int maxStatements;
+  // null for the unqualified persistence unit
+  private final Class<? extends Annotation> unit;
+  private final ConcurrentMap<Class<?>, Boolean> rollbackDecisions = new ConcurrentHashMap<Class<?>, Boolean>();
+
+  private TransactionPlan(final Transactional transactional, final boolean readOnly, final Batched batched,
+                          final Retryable retryable, final Propagate propagate,
+                          final TransactionAttributes attributes, final PersistenceUnit persistenceUnit) {
+    this.rollbackOn = transactional.rollbackOn();
+    this.ignore = transactional.ignore();
+    this.readOnly = readOnly;
+    this.batchSize = null == batched ? 0 : batched.size();
+    this.retryable = null != retryable && retryable.attempts() > 1 ? retryable : null;
+    this.propagation = null == propagate ? Propagation.REQUIRED : propagate.value();
+    this.isolation = null == attributes ? -1 : attributes.isolation().getLevel();
+    this.timeoutNanos = null == attributes ? 0 : TimeUnit.MILLISECONDS.toNanos(attributes.timeoutMillis());
+    this.maxStatements = null == attributes ? 0 : attributes.maxStatements();
+    this.unit = null == persistenceUnit ? null : persistenceUnit.value();
+  }
+
+  /**
+   * Returns the plan for a method invoked on an instance of the given class.  The method annotation wins over the
+   * class annotation; without either the {@link Transactional} defaults apply.
+   */
+  static TransactionPlan of(final Class<?> targetClass, final Method method) {
+    ConcurrentMap<Method, TransactionPlan> plans = PLANS.get(targetClass);
+    TransactionPlan plan = plans.get(method);
+    if (null == plan) {
+      plan = new TransactionPlan(readTransactionMetadata(targetClass, method),
+                                 readAnnotation(targetClass, method, ReadOnly.class) != null,
+                                 readAnnotation(targetClass, method, Batched.class),
+                                 readAnnotation(targetClass, method, Retryable.class),
+                                 readAnnotation(targetClass, method, Propagate.class),
+                                 readAnnotation(targetClass, method, TransactionAttributes.class),
+                                 readAnnotation(targetClass, method, PersistenceUnit.class));
+      TransactionPlan existing = plans.putIfAbsent(method, plan);
+      if (null != existing) {
+        plan = existing;
+      }
+    }
+    return plan;
+  }
+
+  private static Transactional readTransactionMetadata(final Class<?> targetClass, final Method method) {
+    Transactional transactional = method.getAnnotation(Transactional.class);
+    if (null == transactional) {
+      // If none on method, try the class.
+      transactional = targetClass.getAnnotation(Transactional.class);
+    }
+    if (null == transactional) {
+      // If there is no transactional annotation present, use the default
+      transactional = DEFAULT_TRANSACTIONAL;
+    }
+    return transactional;
+  }
+
+  private static <A extends Annotation> A readAnnotation(final Class<?> targetClass, final Method method,
+                                                        final Class<A> annotationType) {
+    A annotation = method.getAnnotation(annotationType);
+    return null != annotation ? annotation : targetClass.getAnnotation(annotationType);
+  }
+
+  /**
+   * @return true if the method is marked {@link ReadOnly}
+   */
+  boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * @return the qualifier of the persistence unit selected with {@link PersistenceUnit}, null for the unqualified one
+   */
+  Class<? extends Annotation> getUnit() {
+    return unit;
+  }
+
+  Propagation getPropagation() {
+    return propagation;
+  }
+
+  /**
+   * @return the JDBC isolation level requested with {@link TransactionAttributes}, -1 for the connection's own
+   */
+  int getIsolation() {
+    return isolation;
+  }
+
+  /**
+   * @return true if the transaction has a deadline or a statement budget
+   */
+  boolean hasLimits() {
+    return timeoutNanos > 0 || maxStatements > 0;
+  }
+
+  long getTimeoutNanos() {
+    return timeoutNanos;
+  }
+
+  int getMaxStatements() {
+    return maxStatements;
+  }
+
+  /**
+   * @return the DML batch size requested with {@link Batched}, 0 if DML is not batched
+   */
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Returns true if a transaction that failed with the given exception, on the given attempt, is to be run again.
+   * Only rolled back serialization failures and deadlocks are retried.
+   */
+  boolean retriesOn(final Throwable e, final int attempt) {
+    return null != retryable && attempt < retryable.attempts() && rollsBackOn(e) && isSerializationFailure(e);
+  }
+
+  /**
+   * @return the pause before the given retry, chosen at random up to an exponentially growing bound
+   */
+  long backoffMillis(final int attempt) {
+    long bound = retryable.backoffMillis() << Math.min(attempt - 1, 30);
+    bound = Math.min(bound < 0 ? Long.MAX_VALUE : bound, retryable.maxBackoffMillis());
+    return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+  }
+
+  private static boolean isSerializationFailure(final Throwable e) {
+    // causes, and the exceptions chained to SQL exceptions, e.g. those of the statements of a failed batch
+    Deque<Throwable> pending = new ArrayDeque<Throwable>();
+    Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+    pending.add(e);
+    while (!pending.isEmpty()) {
+      Throwable cause = pending.poll();
+      if (!seen.add(cause)) {
+        // drivers may chain an exception more than once, or in a cycle
+        continue;
+      }
+      if (cause instanceof SQLException) {
+        SQLException sqlException = (SQLException) cause;
+        String sqlState = sqlException.getSQLState();
+        if ("40001".equals(sqlState) || "40P01".equals(sqlState)) {
+          return true;
+        }
+        if (null != sqlException.getNextException()) {
+          pending.add(sqlException.getNextException());
+        }
+      }
+      if (null != cause.getCause()) {
+        pending.add(cause.getCause());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the transaction must be rolled back because of the given exception.  Anything that is not an
+   * {@link Exception} (i.e. an {@link Error}) always rolls back.
+   */
+  boolean rollsBackOn(final Throwable e) {
+    Class<?> type = e.getClass();
+    Boolean rollback = rollbackDecisions.get(type);
+    if (null == rollback) {
+      rollback = decideRollback(type);
+      rollbackDecisions.putIfAbsent(type, rollback);
+    }
+    return rollback;
+  }
+
+  private boolean decideRollback(final Class<?> type) {
+    if (!Exception.class.isAssignableFrom(type)) {
+      return true;
+    }
+    //check rollback clauses
+    for (Class<? extends Exception> rollBackOn : rollbackOn) {
+      //if one matched, rollback unless an ignore clause (supercedes rollback clause) matches too
+      if (rollBackOn.isAssignableFrom(type)) {
+        for (Class<? extends Exception> exceptOn : ignore) {
+          if (exceptOn.isAssignableFrom(type)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+}
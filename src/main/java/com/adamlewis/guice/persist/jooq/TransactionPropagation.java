@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Carries the unit of work of the calling thread over to tasks run on other threads, e.g. stages of a
+ * {@code CompletableFuture} chain:
+ * <pre>
+ *   CompletableFuture.supplyAsync(() -&gt; dsl.selectFrom(USER).fetch(), propagation.wrap(executor))
+ * </pre>
+ * Tasks are wrapped when they are submitted; if the submitting thread has no unit of work they run unchanged.
+ * <p>
+ * The connection is claimed for each call only, so two threads never use it at once, but nothing orders their calls:
+ * a task still running when the thread that began the transaction commits it may run its statements after the
+ * commit, in auto-commit mode.  The claim detects misuse, it does not prevent it; wait for the tasks before the
+ * {@code @Transactional} method returns.
+ */
+@Singleton
+public final class TransactionPropagation {
+  private final JooqPersistService persistService;
+
+  @Inject
+  TransactionPropagation(final JooqPersistService persistService) {
+    this.persistService = persistService;
+  }
+
+  /**
+   * @return the unit of work of the calling thread
+   * @throws IllegalStateException if no work has begun on the calling thread
+   */
+  public TransactionContext capture() {
+    TransactionContext context = captureIfWorking();
+    if (null == context) {
+      throw new IllegalStateException("No unit of work to capture. "
+              + "Try calling UnitOfWork.begin() first, use @Transactional annotation"
+              + "or use a PersistFilter if you are inside a servlet environment.");
+    }
+    return context;
+  }
+
+  private TransactionContext captureIfWorking() {
+    UnitOfWorkConnectionProvider connection = persistService.getConnectionWrapper();
+    return null == connection ? null : new TransactionContext(persistService, connection);
+  }
+
+  /**
+   * @return the task, running in the unit of work of the calling thread
+   */
+  public Runnable wrap(final Runnable task) {
+    final TransactionContext context = captureIfWorking();
+    if (null == context) {
+      return task;
+    }
+    return new Runnable() {
+      @Override
+      public void run() {
+        TransactionContext.Scope scope = context.attach();
+        try {
+          task.run();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return the task, running in the unit of work of the calling thread
+   */
+  public <T> Callable<T> wrap(final Callable<T> task) {
+    final TransactionContext context = captureIfWorking();
+    if (null == context) {
+      return task;
+    }
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        TransactionContext.Scope scope = context.attach();
+        try {
+          return task.call();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Named apart from {@link #wrap(Callable)} so lambdas are not ambiguous; intended for
+   * {@code CompletableFuture.supplyAsync}.
+   */
+  public <T> Supplier<T> wrapSupplier(final Supplier<T> task) {
+    final TransactionContext context = captureIfWorking();
+    if (null == context) {
+      return task;
+    }
+    return new Supplier<T>() {
+      @Override
+      public T get() {
+        TransactionContext.Scope scope = context.attach();
+        try {
+          return task.get();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return an executor running each task in the unit of work of the thread that submitted it
+   */
+  public Executor wrap(final Executor executor) {
+    return new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        executor.execute(wrap(command));
+      }
+    };
+  }
+
+  /**
+   * @return an executor service running each task in the unit of work of the thread that submitted it
+   */
+  public ExecutorService wrap(final ExecutorService executorService) {
+    return new PropagatingExecutorService(executorService);
+  }
+
+  private final class PropagatingExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+
+    PropagatingExecutorService(final ExecutorService delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+      delegate.execute(wrap(command));
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
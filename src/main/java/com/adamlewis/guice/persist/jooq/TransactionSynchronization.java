@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+/**
+ * Callbacks on the completion of the transaction they were registered with, see {@link TransactionSynchronizations}.
+ * Every method does nothing by default.
+ */
+public interface TransactionSynchronization {
+  /**
+   * Runs right before the transaction commits, on its connection; statements executed here are part of it.  An
+   * exception rolls the transaction back.
+   */
+  default void beforeCommit() {
+  }
+
+  /**
+   * Runs once the transaction has committed and the unit of work has returned its connection.  Exceptions are logged.
+   */
+  default void afterCommit() {
+  }
+
+  /**
+   * Runs once the transaction has rolled back and the unit of work has returned its connection.  Exceptions are
+   * logged.
+   */
+  default void afterRollback() {
+  }
+}
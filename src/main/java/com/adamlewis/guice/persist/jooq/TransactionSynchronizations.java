@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Registers {@link TransactionSynchronization callbacks} with the transaction of the current unit of work, so that
+ * side effects such as publishing events or invalidating caches happen only once the transaction has committed, and
+ * outside of it:
+ * <pre>
+ *   synchronizations.afterCommitAsync(() -&gt; searchIndex.update(user));
+ * </pre>
+ * After-commit and after-rollback callbacks run when the unit of work ends, after its connection has been returned, in
+ * the order they were registered.  When the unit of work is begun by the {@code @Transactional} method, that is right
+ * after the method's transaction completes; when it was begun with {@code UnitOfWork.begin()}, callbacks of all its
+ * transactions wait for {@code UnitOfWork.end()}.  Callbacks registered within a {@link Propagation#NESTED} method
+ * belong to the enclosing transaction, even if the method is rolled back to its savepoint.
+ * <p>
+ * {@link #afterCommitAsync(Runnable)} runs callbacks on a small pool sized with
+ * {@link JooqPersistModule#asyncCallbacks(int, int)}.  When its queue is full, the thread ending the unit of work runs
+ * them itself, so "async" callbacks then delay the committing thread as {@link #afterCommit(Runnable)} ones do.  The
+ * pool is shut down by {@code PersistService.stop()}, after which callbacks run on the committing thread too.
+ */
+@Singleton
+public final class TransactionSynchronizations {
+  private final JooqPersistService persistService;
+  private final ThreadPoolExecutor executor;
+
+  @Inject
+  TransactionSynchronizations(final JooqPersistService persistService, final JooqPersistOptions options) {
+    this.persistService = persistService;
+    int threads = options.getAsyncCallbackThreads();
+    AtomicInteger created = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                           new ArrayBlockingQueue<Runnable>(options.getAsyncCallbackQueueSize()),
+                                           task -> {
+      Thread thread = new Thread(task, "jooq-after-commit-" + created.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }, (task, pool) -> task.run());
+    // idle pools hold no threads
+    this.executor.allowCoreThreadTimeOut(true);
+    persistService.shutDownOnStop(executor);
+  }
+
+  /**
+   * @throws IllegalStateException if no transaction is in progress on the calling thread
+   */
+  public void register(final TransactionSynchronization synchronization) {
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    if (null == conn || conn.getAutoCommit()) {
+      throw new IllegalStateException("No transaction in progress on this thread");
+    }
+    conn.registerSynchronization(synchronization);
+  }
+
+  /**
+   * Runs the given callback on the thread ending the unit of work, if the current transaction commits.
+   *
+   * @throws IllegalStateException if no transaction is in progress on the calling thread
+   */
+  public void afterCommit(final Runnable callback) {
+    register(new TransactionSynchronization() {
+      @Override
+      public void afterCommit() {
+        callback.run();
+      }
+    });
+  }
+
+  /**
+   * Runs the given callback asynchronously, if the current transaction commits.  When the pool is saturated or shut
+   * down, the callback runs on the thread ending the unit of work instead.
+   *
+   * @throws IllegalStateException if no transaction is in progress on the calling thread
+   */
+  public void afterCommitAsync(final Runnable callback) {
+    register(new TransactionSynchronization() {
+      @Override
+      public void afterCommit() {
+        executor.execute(callback);
+      }
+    });
+  }
+}
@@ -0,0 +1,930 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.DataSource;
+
+import org.jooq.ConnectionProvider;
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+import org.jooq.tools.jdbc.BatchedConnection;
+import org.jooq.tools.jdbc.BatchedPreparedStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ConnectionProvider} backing the {@link org.jooq.DSLContext} of a single unit of work.
+ * <p>
+ * The JDBC connection is held for the whole unit of work and is only taken from the {@link DataSource} the first time
+ * it is needed.  Auto-commit changes requested before that point are recorded and applied once the connection has
+ * been acquired, so starting a transaction does not by itself force a connection out of the pool.
+ * <p>
+ * The auto-commit mode is tracked here rather than read back from the driver, which on some drivers costs a round trip.
+ * Connections are expected to come out of the pool in auto-commit mode, as mandated by JDBC.  For read-only units of
+ * work, disabling auto-commit is only sent to the driver when a statement is about to run, so a read-only transaction
+ * that never executes anything costs no driver calls and has nothing to commit.
+ * <p>
+ * A unit of work may be handed to other threads through a {@link TransactionContext}, but its connection is only ever
+ * used by one thread at a time: jOOQ brackets every execution with {@link #acquire()} and {@link #release(Connection)},
+ * and a thread trying to acquire the connection while another one holds it fails fast.
+ * <p>
+ * This object is the only per unit of work state and the only thread-local entry the service keeps; it is removed
+ * when the unit of work ends, so idle threads (including virtual threads) carry nothing.
+ */
+class UnitOfWorkConnectionProvider implements ConnectionProvider {
+  private static final Logger logger = LoggerFactory.getLogger(UnitOfWorkConnectionProvider.class);
+
+  private final DataSource dataSource;
+  private final boolean readOnly;
+  private final Thread beganBy = Thread.currentThread();
+  // thread currently executing on the connection
+  private volatile Thread owner;
+  private static final AtomicReferenceFieldUpdater<UnitOfWorkConnectionProvider, Thread> OWNER =
+      AtomicReferenceFieldUpdater.newUpdater(UnitOfWorkConnectionProvider.class, Thread.class, "owner");
+
+  // only touched by the owning thread
+  private int holdCount;
+  private Connection connection;
+  private boolean closed;
+  // requested auto-commit mode
+  private boolean autoCommit = true;
+  // auto-commit mode of the JDBC connection itself
+  private boolean connectionAutoCommit = true;
+  // DML batch size of the current transaction, 0 if not batching
+  private int batchSize;
+  private DiscardableBatch batchedConnection;
+  // requested isolation level of the current transaction, -1 for the level the connection came with
+  private int isolation = -1;
+  // true while a read-only transaction runs in a read-write unit of work
+  private boolean readOnlyTransaction;
+  // read-only flag of the JDBC connection itself
+  private boolean connectionReadOnly;
+  // level the connection came with, only read once a transaction asks for another one
+  private int defaultIsolation = -1;
+  // isolation level of the JDBC connection itself, -1 while unknown
+  private int connectionIsolation = -1;
+  // deadline (System.nanoTime()) and statement budget of the current transaction, 0 if unlimited
+  private long deadline;
+  private int maxStatements;
+  private int statements;
+  // created on first use, only with a cache installed
+  private StatementTables statementTables;
+  private UnitOfWorkRecords records;
+  // tables modified by the current transaction, invalidated in the result cache once it commits
+  private ResultCache resultCache;
+  private Set<String> pendingModifications;
+  // null if connections are not limited; the permit is held from admittedAt until the connection is closed
+  private ConcurrencyLimit concurrencyLimit;
+  // units of work in progress of the service, left once closed; null unless the service drains on stop
+  private LongAdder inProgress;
+  private long admittedAt;
+
+  // registered with the current transaction, and callbacks of completed ones run when the unit of work ends
+  private List<TransactionSynchronization> synchronizations;
+  private List<Runnable> completions;
+
+  // statements of prepared queries kept open until the connection is returned, by SQL
+  private Map<String, PreparedStatement> keptStatements;
+  // schema of the tenant served, null for the default one
+  private String tenant;
+  // null unless the connection is switched to the tenant's schema, rather than the schema rendered as the tenant's
+  private SessionSchemas sessionSchemas;
+  private DSLContext tenantContext;
+
+  // null unless the statements of this unit of work are traced
+  private QueryTrace trace;
+
+  private final MetricsListener metrics;
+  // only take timings if someone is listening
+  private final boolean timed;
+  private final long beganAt;
+  private long acquiredAt;
+  private int queries;
+  private long queryNanos;
+  // nesting depth of @Transactional methods within the current transaction
+  private int depth;
+
+  UnitOfWorkConnectionProvider(final DataSource dataSource) {
+    this(dataSource, false);
+  }
+
+  UnitOfWorkConnectionProvider(final DataSource dataSource, final boolean readOnly) {
+    this(dataSource, readOnly, MetricsListener.NONE);
+  }
+
+  UnitOfWorkConnectionProvider(final DataSource dataSource, final boolean readOnly, final MetricsListener metrics) {
+    this.dataSource = dataSource;
+    this.readOnly = readOnly;
+    this.metrics = metrics;
+    this.timed = metrics != MetricsListener.NONE;
+    this.beganAt = timed ? System.nanoTime() : 0;
+  }
+
+  @Override
+  public Connection acquire() {
+    claim();
+    try {
+      return connection();
+    } catch (RuntimeException e) {
+      unclaim();
+      throw e;
+    }
+  }
+
+  /**
+   * Takes the JDBC connection from the data source right away, without holding on to it.
+   */
+  void open() {
+    acquire();
+    release(connection);
+  }
+
+  private Connection connection() {
+    if (closed) {
+      throw new IllegalStateException("Unit of work has already ended");
+    }
+    if (null == connection) {
+      if (null != concurrencyLimit) {
+        concurrencyLimit.acquire(metrics);
+        admittedAt = System.nanoTime();
+      }
+      try {
+        logger.debug("Getting JDBC connection");
+        long requestedAt = timed ? System.nanoTime() : 0;
+        Connection jdbcConn = dataSource.getConnection();
+        if (timed) {
+          acquiredAt = System.nanoTime();
+          metrics.connectionAcquired(acquiredAt - requestedAt);
+        }
+        connection = jdbcConn;
+        connectionAutoCommit = true;
+        if (readOnly || readOnlyTransaction) {
+          jdbcConn.setReadOnly(true);
+          connectionReadOnly = true;
+        }
+        if (null != sessionSchemas) {
+          sessionSchemas.switchTo(jdbcConn, tenant);
+        }
+      } catch (SQLException e) {
+        closeQuietly();
+        releasePermit();
+        throw new DataAccessException("Could not acquire JDBC connection", e);
+      } catch (RuntimeException | Error e) {
+        closeQuietly();
+        releasePermit();
+        throw e;
+      }
+    }
+    if (isolation != connectionIsolation && isolation != -1) {
+      applyIsolation();
+    }
+    if (connectionAutoCommit != autoCommit) {
+      applyAutoCommit();
+    }
+    if (batchSize > 0) {
+      if (null == batchedConnection) {
+        batchedConnection = new DiscardableBatch(connection, batchSize);
+      }
+      return batchedConnection;
+    }
+    return connection;
+  }
+
+  private void closeQuietly() {
+    Connection failed = connection;
+    connection = null;
+    if (null != failed) {
+      try {
+        failed.close();
+      } catch (SQLException e) {
+        logger.debug("Closing JDBC connection that could not be set up", e);
+      }
+    }
+  }
+
+  @Override
+  public void release(final Connection released) {
+    // the connection itself is kept until the unit of work ends
+    unclaim();
+  }
+
+  private void claim() {
+    Thread current = Thread.currentThread();
+    if (owner != current && !OWNER.compareAndSet(this, null, current)) {
+      throw new IllegalStateException("JDBC connection of this unit of work is in use by thread " + owner);
+    }
+    holdCount++;
+  }
+
+  private void unclaim() {
+    if (owner == Thread.currentThread() && --holdCount == 0) {
+      owner = null;
+    }
+  }
+
+  /**
+   * @return true if a JDBC connection has been taken from the data source for this unit of work
+   */
+  boolean isAcquired() {
+    return null != connection;
+  }
+
+  /**
+   * @return true if the unit of work was begun on the given thread
+   */
+  boolean wasBegunOn(final Thread thread) {
+    return beganBy == thread;
+  }
+
+  /**
+   * @return true if this unit of work was begun by a {@link ReadOnly} transaction
+   */
+  boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * @return true if this unit of work is read-only, or runs a read-only transaction
+   */
+  boolean inReadOnlyTransaction() {
+    return readOnly || readOnlyTransaction;
+  }
+
+  /**
+   * Flags the connection of a read-write unit of work read-only for the next transaction; auto-commit mode clears the
+   * flag again.  The connection stays the one of the unit of work, it is not taken from the {@link Replica}.
+   */
+  void setReadOnlyTransaction(final boolean readOnlyTransaction) {
+    claim();
+    try {
+      this.readOnlyTransaction = readOnlyTransaction;
+      if (null != connection && connectionReadOnly != readOnlyTransaction) {
+        connection.setReadOnly(readOnlyTransaction);
+        connectionReadOnly = readOnlyTransaction;
+      }
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot set read-only mode", e);
+    } finally {
+      unclaim();
+    }
+  }
+
+  MetricsListener getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return true if a {@link MetricsListener} other than {@link MetricsListener#NONE} is installed
+   */
+  boolean isTimed() {
+    return timed;
+  }
+
+  /**
+   * Counts a statement executed in this unit of work; called by {@link QueryMetricsListener}.
+   */
+  void queryExecuted(final long durationNanos) {
+    queries++;
+    queryNanos += durationNanos;
+    metrics.queryExecuted(durationNanos);
+  }
+
+  /**
+   * Tracks the nesting depth of {@code @Transactional} methods; only maintained while {@link #isTimed() timed}.
+   *
+   * @return the depth of the entered method, 1 for the method that began the transaction
+   */
+  int enterTransactional() {
+    return ++depth;
+  }
+
+  void exitTransactional() {
+    depth--;
+  }
+
+  /**
+   * @return the tables referenced by the statement being executed
+   */
+  StatementTables getStatementTables() {
+    if (null == statementTables) {
+      statementTables = new StatementTables();
+    }
+    return statementTables;
+  }
+
+  /**
+   * @return true if records have been cached in this unit of work
+   */
+  boolean hasRecords() {
+    return null != records;
+  }
+
+  /**
+   * @return the records cached in this unit of work
+   * @see RecordCache
+   */
+  UnitOfWorkRecords getRecords() {
+    if (null == records) {
+      records = new UnitOfWorkRecords();
+    }
+    return records;
+  }
+
+  /**
+   * Limits the connection of this unit of work by the given limit; only takes effect before the connection is acquired.
+   */
+  void setConcurrencyLimit(final ConcurrencyLimit concurrencyLimit) {
+    this.concurrencyLimit = concurrencyLimit;
+  }
+
+  private void releasePermit() {
+    if (null != concurrencyLimit) {
+      concurrencyLimit.release(System.nanoTime() - admittedAt);
+    }
+  }
+
+  /**
+   * Binds this unit of work to the tenant with the given schema; only takes effect before the connection is acquired.
+   *
+   * @param sessionSchemas the schemas connections are switched to, null if statements render the schema themselves
+   */
+  void setTenant(final String tenant, final SessionSchemas sessionSchemas) {
+    this.tenant = tenant;
+    this.sessionSchemas = sessionSchemas;
+  }
+
+  /**
+   * @return the schema of the tenant served, null for the default one
+   */
+  String getTenant() {
+    return tenant;
+  }
+
+  /**
+   * @return the context rendering the tenant's schema, null for the shared one
+   */
+  DSLContext getTenantContext() {
+    return tenantContext;
+  }
+
+  void setTenantContext(final DSLContext tenantContext) {
+    this.tenantContext = tenantContext;
+  }
+
+  QueryTrace getTrace() {
+    return trace;
+  }
+
+  void setTrace(final QueryTrace trace) {
+    this.trace = trace;
+  }
+
+  void setResultCache(final ResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Counts this unit of work among the given units of work in progress until it is closed.
+   */
+  void countIn(final LongAdder inProgress) {
+    inProgress.increment();
+    this.inProgress = inProgress;
+  }
+
+  /**
+   * Records tables modified by a statement, identified as in {@link StatementTables}; the cached results reading them
+   * are invalidated when the transaction commits, or right away outside a transaction.
+   *
+   * @param tableKeys modified tables, empty if unknown
+   */
+  void tablesModified(final Collection<String> tableKeys) {
+    Collection<String> tables = tableKeys.isEmpty() ? Collections.singleton(ResultCache.ALL_TABLES) : tableKeys;
+    claim();
+    try {
+      if (autoCommit) {
+        resultCache.invalidate(tables);
+        return;
+      }
+      if (null == pendingModifications) {
+        pendingModifications = new HashSet<String>();
+      }
+      pendingModifications.addAll(tables);
+    } finally {
+      unclaim();
+    }
+  }
+
+  /**
+   * @return true if the current transaction has modified any of the given tables
+   */
+  boolean hasPendingModifications(final String[] tableKeys) {
+    if (null == pendingModifications) {
+      return false;
+    }
+    if (pendingModifications.contains(ResultCache.ALL_TABLES)) {
+      return true;
+    }
+    for (String table : tableKeys) {
+      if (pendingModifications.contains(table)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void publishModifications() {
+    Set<String> modified = pendingModifications;
+    pendingModifications = null;
+    if (null != modified) {
+      resultCache.invalidate(modified);
+    }
+  }
+
+  /**
+   * Registers callbacks with the current transaction.
+   *
+   * @see TransactionSynchronizations
+   */
+  void registerSynchronization(final TransactionSynchronization synchronization) {
+    claim();
+    try {
+      if (null == synchronizations) {
+        synchronizations = new ArrayList<TransactionSynchronization>();
+      }
+      synchronizations.add(synchronization);
+    } finally {
+      unclaim();
+    }
+  }
+
+  private void beforeCommit() {
+    // callbacks may register more callbacks
+    for (int i = 0; i < synchronizations.size(); i++) {
+      synchronizations.get(i).beforeCommit();
+    }
+  }
+
+  private void completeSynchronizations(final boolean committed) {
+    List<TransactionSynchronization> completed = synchronizations;
+    synchronizations = null;
+    if (null != completed) {
+      if (null == completions) {
+        completions = new ArrayList<Runnable>(completed.size());
+      }
+      for (TransactionSynchronization synchronization : completed) {
+        completions.add(committed ? synchronization::afterCommit : synchronization::afterRollback);
+      }
+    }
+  }
+
+  /**
+   * Runs the after-commit and after-rollback callbacks of the transactions completed so far; callbacks of a transaction
+   * that never completed are run as rolled back.  Called once the connection has been returned, exceptions are logged.
+   */
+  void runCompletions() {
+    completeSynchronizations(false);
+    List<Runnable> pending = completions;
+    completions = null;
+    if (null != pending) {
+      for (Runnable completion : pending) {
+        try {
+          completion.run();
+        } catch (RuntimeException e) {
+          logger.warn("Transaction synchronization failed", e);
+        }
+      }
+    }
+  }
+
+  private void discardRecords() {
+    // records read in a rolled back transaction may show its undone writes
+    if (null != records) {
+      records.clear();
+    }
+  }
+
+  /**
+   * @return the auto-commit mode last requested through this provider; the driver is never asked
+   */
+  boolean getAutoCommit() {
+    claim();
+    try {
+      return autoCommit;
+    } finally {
+      unclaim();
+    }
+  }
+
+  /**
+   * Batches consecutive identical DML statements until the current transaction ends.
+   *
+   * @see Batched
+   */
+  void setBatchSize(final int batchSize) {
+    claim();
+    try {
+      if (autoCommit) {
+        throw new IllegalStateException("DML can only be batched within a transaction");
+      }
+      this.batchSize = batchSize;
+    } finally {
+      unclaim();
+    }
+  }
+
+  /**
+   * @return true if DML of the current transaction is batched
+   */
+  boolean isBatching() {
+    return batchSize > 0;
+  }
+
+  /**
+   * @return the statement kept open for the given SQL, null if there is none
+   * @see PreparedQueries
+   */
+  PreparedStatement getKeptStatement(final String sql) {
+    return null == keptStatements ? null : keptStatements.get(sql);
+  }
+
+  /**
+   * Keeps the given statement open until the connection is returned.
+   */
+  void keepStatement(final String sql, final PreparedStatement statement) {
+    if (null == keptStatements) {
+      keptStatements = new HashMap<String, PreparedStatement>();
+    }
+    keptStatements.put(sql, statement);
+  }
+
+  private void closeKeptStatements() {
+    Map<String, PreparedStatement> kept = keptStatements;
+    keptStatements = null;
+    if (null != kept) {
+      for (PreparedStatement statement : kept.values()) {
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          logger.debug("Closing kept statement", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the isolation level of the next transaction; -1 restores the level the connection came with.  The driver is
+   * only called if the level changes.
+   */
+  void setIsolation(final int isolation) {
+    claim();
+    try {
+      this.isolation = isolation;
+      if (null != connection && connectionIsolation != (isolation == -1 ? defaultIsolation : isolation)) {
+        applyIsolation();
+      }
+    } finally {
+      unclaim();
+    }
+  }
+
+  private void applyIsolation() {
+    try {
+      if (-1 == defaultIsolation) {
+        defaultIsolation = connection.getTransactionIsolation();
+        connectionIsolation = defaultIsolation;
+      }
+      int level = isolation == -1 ? defaultIsolation : isolation;
+      if (connectionIsolation != level) {
+        connection.setTransactionIsolation(level);
+        connectionIsolation = level;
+      }
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot set transaction isolation", e);
+    }
+  }
+
+  /**
+   * Limits the current transaction to the given deadline and number of statements, 0 for no limit.
+   *
+   * @see TransactionAttributes
+   */
+  void setLimits(final long deadline, final int maxStatements) {
+    claim();
+    try {
+      this.deadline = deadline;
+      this.maxStatements = maxStatements;
+      this.statements = 0;
+    } finally {
+      unclaim();
+    }
+  }
+
+  boolean hasLimits() {
+    return deadline != 0 || maxStatements != 0;
+  }
+
+  /**
+   * Counts a statement about to execute against the statement budget, and sets its query timeout to the time left
+   * until the deadline.
+   *
+   * @throws TransactionLimitExceededException if the budget is used up or the deadline has passed
+   */
+  void checkLimits(final Statement statement) {
+    if (maxStatements != 0 && ++statements > maxStatements) {
+      throw new TransactionLimitExceededException("Transaction exceeded its budget of " + maxStatements
+                                                  + " statements");
+    }
+    if (deadline != 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new TransactionLimitExceededException("Transaction exceeded its deadline by "
+                                                    + TimeUnit.NANOSECONDS.toMillis(-remaining) + " ms");
+      }
+      if (null != statement) {
+        // JDBC timeouts are in whole seconds, round up so a statement is never cut short of its deadline
+        int seconds = (int) Math.min(Integer.MAX_VALUE, (remaining + 999999999L) / 1000000000L);
+        try {
+          int timeout = statement.getQueryTimeout();
+          if (timeout == 0 || timeout > seconds) {
+            statement.setQueryTimeout(seconds);
+          }
+        } catch (SQLException e) {
+          throw new DataAccessException("Cannot set query timeout", e);
+        }
+      }
+    }
+  }
+
+  void setAutoCommit(final boolean autoCommit) {
+    claim();
+    try {
+      this.autoCommit = autoCommit;
+      if (autoCommit) {
+        // the transaction is over, and so is batching; commit() or rollback() flushed or discarded the last batch
+        batchSize = 0;
+        batchedConnection = null;
+        deadline = 0;
+        maxStatements = 0;
+        pendingModifications = null;
+      }
+      // read-only connections only leave auto-commit mode when the next statement runs
+      if (null != connection && connectionAutoCommit != autoCommit && (autoCommit || !readOnly)) {
+        applyAutoCommit();
+      }
+      if (autoCommit && isolation != -1) {
+        // back to the level the connection came with
+        setIsolation(-1);
+      }
+      if (autoCommit && readOnlyTransaction) {
+        setReadOnlyTransaction(false);
+      }
+    } finally {
+      unclaim();
+    }
+  }
+
+  private void applyAutoCommit() {
+    try {
+      connection.setAutoCommit(autoCommit);
+      connectionAutoCommit = autoCommit;
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot set autoCommit", e);
+    }
+  }
+
+  void commit() {
+    claim();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Unit of work has already ended");
+      }
+      if (null != synchronizations) {
+        // an exception here leaves the transaction to be rolled back
+        beforeCommit();
+      }
+      // nothing to commit if auto-commit was never disabled on the connection
+      if (null == connection || connectionAutoCommit) {
+        completeSynchronizations(true);
+        return;
+      }
+      try {
+        // a batched connection flushes its last batch first
+        (null != batchedConnection ? batchedConnection : connection).commit();
+        publishModifications();
+        completeSynchronizations(true);
+      } catch (BatchUpdateException e) {
+        throw new BatchFlushException(e);
+      } catch (SQLException e) {
+        throw new DataAccessException("Cannot commit transaction", e);
+      } finally {
+        batchedConnection = null;
+      }
+    } finally {
+      unclaim();
+    }
+  }
+
+  void rollback() {
+    claim();
+    try {
+      completeSynchronizations(false);
+      if (null == connection || connectionAutoCommit) {
+        return;
+      }
+      discardBatch();
+      discardRecords();
+      pendingModifications = null;
+      connection.rollback();
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot rollback transaction", e);
+    } finally {
+      unclaim();
+    }
+  }
+
+  /**
+   * Sets a savepoint in the current transaction, flushing pending batched DML first.
+   */
+  Savepoint setSavepoint() {
+    claim();
+    try {
+      return connection().setSavepoint();
+    } catch (BatchUpdateException e) {
+      throw new BatchFlushException(e);
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot set savepoint", e);
+    } finally {
+      unclaim();
+    }
+  }
+
+  void rollback(final Savepoint savepoint) {
+    claim();
+    try {
+      discardRecords();
+      // pending batched DML all ran after the savepoint, which flushed the batch before it; it is dropped unsent
+      discardBatch();
+      connection().rollback(savepoint);
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot rollback to savepoint", e);
+    } finally {
+      unclaim();
+    }
+  }
+
+  void releaseSavepoint(final Savepoint savepoint) {
+    claim();
+    try {
+      connection().releaseSavepoint(savepoint);
+    } catch (SQLFeatureNotSupportedException e) {
+      // some drivers release savepoints only with the transaction
+      logger.debug("Savepoints cannot be released", e);
+    } catch (BatchUpdateException e) {
+      throw new BatchFlushException(e);
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot release savepoint", e);
+    } finally {
+      unclaim();
+    }
+  }
+
+  private void discardBatch() {
+    DiscardableBatch batched = batchedConnection;
+    batchedConnection = null;
+    if (null != batched) {
+      try {
+        batched.discard();
+      } catch (SQLException e) {
+        logger.debug("Closing discarded DML batch", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the connection to the data source, if one was acquired.
+   */
+  void close() {
+    closed = true;
+    try {
+      if (null != connection) {
+        closeConnection();
+      }
+    } finally {
+      if (timed) {
+        metrics.unitOfWorkEnded(System.nanoTime() - beganAt, queries, queryNanos);
+      }
+      LongAdder counted = inProgress;
+      inProgress = null;
+      if (null != counted) {
+        counted.decrement();
+      }
+    }
+  }
+
+  /**
+   * Ends the unit of work from a thread that may not own it, i.e. one whose thread died without ending it or the one
+   * of a closed stream: rolls back and returns the connection.  Ownership is taken over.
+   */
+  void reclaim() {
+    holdCount = 0;
+    owner = null;
+    try {
+      rollback();
+    } catch (RuntimeException e) {
+      logger.debug("Rolling back reclaimed unit of work", e);
+    } finally {
+      close();
+    }
+  }
+
+  private void closeConnection() {
+    Connection closing = connection;
+    connection = null;
+    try {
+      try {
+        claim();
+        try {
+          logger.debug("Closing JDBC connection");
+          closeKeptStatements();
+          if (connectionReadOnly) {
+            closing.setReadOnly(false);
+          }
+        } finally {
+          unclaim();
+        }
+      } finally {
+        // returned even if it could not be reset, or another thread still holds it
+        closing.close();
+      }
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot close JDBC connection", e);
+    } finally {
+      if (timed) {
+        metrics.connectionReleased(System.nanoTime() - acquiredAt);
+      }
+      releasePermit();
+    }
+  }
+
+  /**
+   * Batched connection whose pending batch can be dropped without being sent, e.g. when its transaction rolls back.
+   */
+  private static final class DiscardableBatch extends BatchedConnection {
+    // the statement last prepared, whose batch is pending if it is batched; any other statement flushes it
+    private PreparedStatement last;
+
+    private DiscardableBatch(final Connection connection, final int batchSize) {
+      super(connection, batchSize);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql) throws SQLException {
+      last = super.prepareStatement(sql);
+      return last;
+    }
+
+    /**
+     * Closes the statement of the pending batch, which discards it; this connection must not be used afterwards.
+     */
+    private void discard() throws SQLException {
+      PreparedStatement pending = last;
+      last = null;
+      if (pending instanceof BatchedPreparedStatement) {
+        // closing the batched statement itself does nothing, closing the driver's statement drops its batch
+        ((BatchedPreparedStatement) pending).getDelegate().close();
+      }
+    }
+  }
+}
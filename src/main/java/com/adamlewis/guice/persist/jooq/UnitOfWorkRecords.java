@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jooq.Table;
+import org.jooq.UpdatableRecord;
+
+/**
+ * Identity map of the records loaded in one unit of work, by table and primary key.
+ * <p>
+ * Created on first use and dropped with the unit of work.  A unit of work may be handed between threads, so the maps
+ * are concurrent, but they are never contended.
+ */
+final class UnitOfWorkRecords {
+  private final ConcurrentMap<String, ConcurrentMap<List<Object>, UpdatableRecord<?>>> tables =
+      new ConcurrentHashMap<String, ConcurrentMap<List<Object>, UpdatableRecord<?>>>();
+
+  static List<Object> key(final Object... values) {
+    return Arrays.asList(values);
+  }
+
+  UpdatableRecord<?> get(final Table<?> table, final List<Object> key) {
+    ConcurrentMap<List<Object>, UpdatableRecord<?>> records = tables.get(StatementTables.key(table.getName()));
+    return null == records ? null : records.get(key);
+  }
+
+  void put(final UpdatableRecord<?> record) {
+    String table = StatementTables.key(record.getTable().getName());
+    ConcurrentMap<List<Object>, UpdatableRecord<?>> records = tables.get(table);
+    if (null == records) {
+      records = new ConcurrentHashMap<List<Object>, UpdatableRecord<?>>();
+      ConcurrentMap<List<Object>, UpdatableRecord<?>> existing = tables.putIfAbsent(table, records);
+      if (null != existing) {
+        records = existing;
+      }
+    }
+    records.put(key(record.key().intoArray()), record);
+  }
+
+  void invalidate(final Collection<String> tableKeys) {
+    tables.keySet().removeAll(tableKeys);
+  }
+
+  void clear() {
+    tables.clear();
+  }
+}
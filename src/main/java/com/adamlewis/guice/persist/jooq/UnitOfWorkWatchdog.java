@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of open units of work and periodically looks for ones that are open for too long or whose thread has
+ * died.
+ * <p>
+ * Registering a unit of work costs one small entry in a concurrent map; a stack trace is only taken for the sampled
+ * ones.  Overdue units of work are logged and reported once, units of work of dead threads are reclaimed.
+ *
+ * @see JooqPersistModule#watchdog(long, TimeUnit)
+ */
+class UnitOfWorkWatchdog {
+  private static final Logger logger = LoggerFactory.getLogger(UnitOfWorkWatchdog.class);
+
+  private final ConcurrentMap<UnitOfWorkConnectionProvider, OpenUnitOfWork> open =
+      new ConcurrentHashMap<UnitOfWorkConnectionProvider, OpenUnitOfWork>();
+  private final long thresholdNanos;
+  private final int stackTraceSampling;
+  private final MetricsListener metrics;
+  private final AtomicReference<ScheduledExecutorService> scheduler = new AtomicReference<ScheduledExecutorService>();
+
+  UnitOfWorkWatchdog(final long thresholdNanos, final int stackTraceSampling, final MetricsListener metrics) {
+    this.thresholdNanos = thresholdNanos;
+    this.stackTraceSampling = stackTraceSampling;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Registers a unit of work begun by the calling thread.
+   */
+  void register(final UnitOfWorkConnectionProvider conn) {
+    Throwable begunAt = null;
+    if (stackTraceSampling > 0 && ThreadLocalRandom.current().nextInt(stackTraceSampling) == 0) {
+      begunAt = new Throwable("Unit of work begun here");
+    }
+    open.put(conn, new OpenUnitOfWork(Thread.currentThread(), System.nanoTime(), begunAt));
+  }
+
+  void unregister(final UnitOfWorkConnectionProvider conn) {
+    open.remove(conn);
+  }
+
+  /**
+   * @return the number of units of work currently registered
+   */
+  int size() {
+    return open.size();
+  }
+
+  void start() {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "guice-persist-jooq-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (!scheduler.compareAndSet(null, executor)) {
+      executor.shutdown();
+      return;
+    }
+    // an overdue unit of work is noticed at most half a threshold late
+    long period = Math.max(thresholdNanos / 2, TimeUnit.MILLISECONDS.toNanos(100));
+    executor.scheduleWithFixedDelay(this::check, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  void stop() {
+    ScheduledExecutorService executor = scheduler.getAndSet(null);
+    if (null != executor) {
+      executor.shutdownNow();
+    }
+  }
+
+  void check() {
+    try {
+      check(System.nanoTime());
+    } catch (RuntimeException e) {
+      // keep the schedule alive
+      logger.error("Unit of work watchdog failed", e);
+    }
+  }
+
+  void check(final long now) {
+    for (Iterator<Map.Entry<UnitOfWorkConnectionProvider, OpenUnitOfWork>> it = open.entrySet().iterator();
+         it.hasNext(); ) {
+      Map.Entry<UnitOfWorkConnectionProvider, OpenUnitOfWork> entry = it.next();
+      OpenUnitOfWork unitOfWork = entry.getValue();
+      if (!unitOfWork.thread.isAlive()) {
+        it.remove();
+        reclaim(entry.getKey(), unitOfWork);
+      } else if (!unitOfWork.reported && now - unitOfWork.begunAt > thresholdNanos) {
+        unitOfWork.reported = true;
+        long ageNanos = now - unitOfWork.begunAt;
+        logger.warn("Unit of work of thread {} has been open for {} ms", unitOfWork.thread.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(ageNanos), unitOfWork.stackTrace);
+        metrics.unitOfWorkOverdue(ageNanos);
+      }
+    }
+  }
+
+  private void reclaim(final UnitOfWorkConnectionProvider conn, final OpenUnitOfWork unitOfWork) {
+    logger.warn("Reclaiming unit of work of dead thread {}", unitOfWork.thread.getName(), unitOfWork.stackTrace);
+    try {
+      conn.reclaim();
+    } catch (RuntimeException e) {
+      logger.warn("Could not close connection of reclaimed unit of work", e);
+    }
+    metrics.unitOfWorkReclaimed();
+  }
+
+  private static final class OpenUnitOfWork {
+    private final Thread thread;
+    private final long begunAt;
+    private final Throwable stackTrace;
+    // only touched by the watchdog thread
+    private boolean reported;
+
+    private OpenUnitOfWork(final Thread thread, final long begunAt, final Throwable stackTrace) {
+      this.thread = thread;
+      this.begunAt = begunAt;
+      this.stackTrace = stackTrace;
+    }
+  }
+}
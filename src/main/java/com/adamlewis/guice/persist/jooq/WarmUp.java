@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the pool, jOOQ and the driver when the service starts: opens a number of connections at once so that the
+ * pool holds them, validates each with a trivial query, and renders the {@link WarmUpQuery warm-up queries} and
+ * prepares them on each.  What preparing achieves depends on the driver: client-side statement caches, e.g. those of
+ * pools, keep the statement, while drivers that prepare on the server when a statement is executed, such as pgjdbc,
+ * gain little.
+ */
+final class WarmUp {
+  private static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+  private WarmUp() {
+  }
+
+  /**
+   * Runs the warm-up; failures are logged rather than thrown, the service works without it.
+   */
+  static void run(final JooqPersistService persistService, final int connections, final Set<WarmUpQuery> queries) {
+    long startedAt = System.nanoTime();
+    List<UnitOfWorkConnectionProvider> opened = new ArrayList<UnitOfWorkConnectionProvider>(connections);
+    try {
+      for (int i = 0; i < connections; i++) {
+        UnitOfWorkConnectionProvider conn = persistService.newDetachedWork(false, null);
+        opened.add(conn);
+        warmUp(DSL.using(persistService.detachedConfiguration(conn)), conn, queries);
+      }
+      logger.info("Warmed up {} connections and {} queries in {} ms", connections, queries.size(),
+                  (System.nanoTime() - startedAt) / 1000000);
+    } catch (RuntimeException e) {
+      logger.warn("Warm-up failed after {} connections", opened.size(), e);
+    } finally {
+      // all connections are held until the end, or the pool would hand out the same one every time
+      for (UnitOfWorkConnectionProvider conn : opened) {
+        try {
+          conn.close();
+        } catch (DataAccessException e) {
+          logger.debug("Closing warm-up connection", e);
+        }
+      }
+    }
+  }
+
+  private static void warmUp(final DSLContext create, final UnitOfWorkConnectionProvider conn,
+                             final Set<WarmUpQuery> queries) {
+    create.selectOne().fetch();
+    if (queries.isEmpty()) {
+      return;
+    }
+    Connection connection = conn.acquire();
+    try {
+      for (WarmUpQuery query : queries) {
+        String sql = create.render(query.create(create));
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+          logger.trace("Prepared warm-up query {}", sql);
+        } finally {
+          statement.close();
+        }
+      }
+    } catch (SQLException e) {
+      throw new DataAccessException("Cannot prepare warm-up query", e);
+    } finally {
+      conn.release(connection);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Adam L. Lewis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adamlewis.guice.persist.jooq;
+
+import org.jooq.DSLContext;
+import org.jooq.Query;
+
+/**
+ * A query the application runs often, rendered by the warm-up of {@link JooqPersistModule#warmUp(int)} and prepared
+ * on every connection it opens, so that rendering it does not delay the first requests.  Whether preparing it spares
+ * them anything depends on the driver: statements are only cached where the pool or driver caches them on the client,
+ * and drivers such as pgjdbc only prepare on the server once a statement has been executed several times.
+ * <p>
+ * Register warm-up queries with a multibinder:
+ * <pre>
+ *   Multibinder.newSetBinder(binder(), WarmUpQuery.class).addBinding().toInstance(
+ *       create -&gt; create.selectFrom(USER).where(USER.ID.eq((Integer) null)));
+ * </pre>
+ * The queries are only rendered and prepared, never executed; bind values may be left null.
+ */
+@FunctionalInterface
+public interface WarmUpQuery {
+  /**
+   * @param create the context the query is rendered with
+   */
+  Query create(DSLContext create);
+}
@@ -0,0 +1,154 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.adamlewis.guice.persist.jooq.utils.Users.UserRecord;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class BulkLoaderTest {
+  private final AtomicInteger insertedRows = new AtomicInteger();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final List<Connection> opened = Collections.synchronizedList(new ArrayList<Connection>());
+  private BulkLoader bulkLoader;
+
+  @Before
+  public void setUp() throws SQLException {
+    Injector injector = Guice.createInjector(new JooqPersistModule(), new DataSourceModule());
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    when(dataSource.getConnection()).thenAnswer(invocation -> {
+      connections.incrementAndGet();
+      Connection connection = spy(new MockConnection(context -> {
+        Object[][] bindings = context.batchBindings();
+        MockResult[] results = new MockResult[bindings.length];
+        for (int i = 0; i < bindings.length; i++) {
+          if ("bad".equals(bindings[i][1])) {
+            throw new SQLException("constraint violated");
+          }
+          if ("error".equals(bindings[i][1])) {
+            throw new AssertionError("mapper failed");
+          }
+          results[i] = new MockResult(1);
+        }
+        insertedRows.addAndGet(bindings.length);
+        return results;
+      }));
+      opened.add(connection);
+      return connection;
+    });
+    bulkLoader = injector.getInstance(BulkLoader.class);
+  }
+
+  @Test
+  public void loadsInChunksOfCommitSize() {
+    AtomicInteger loadedChunks = new AtomicInteger();
+
+    BulkLoadResult result = bulkLoader.into(USERS)
+        .commitSize(3)
+        .parallelism(2)
+        .listener(new BulkLoadListener() {
+          @Override
+          public void chunkLoaded(final int chunk, final long firstRow, final int rows) {
+            loadedChunks.incrementAndGet();
+          }
+        })
+        .load(users(10, -1));
+
+    assertTrue(result.isSuccessful());
+    assertEquals(4, result.getChunks());
+    assertEquals(10, result.getLoadedRows());
+    assertEquals(10, insertedRows.get());
+    assertEquals(4, loadedChunks.get());
+    assertEquals(4, connections.get());
+  }
+
+  @Test
+  public void reportsFailedChunksAndCarriesOn() {
+    BulkLoadResult result = bulkLoader.into(USERS).commitSize(3).parallelism(2).load(users(10, 4));
+
+    assertTrue(result.isComplete());
+    assertFalse(result.isSuccessful());
+    assertEquals(7, result.getLoadedRows());
+    assertEquals(1, result.getFailures().size());
+    BulkLoadResult.ChunkFailure failure = result.getFailures().get(0);
+    assertEquals(1, failure.getChunk());
+    assertEquals(3, failure.getFirstRow());
+    assertEquals(3, failure.getRows());
+  }
+
+  @Test
+  public void rollsBackChunksFailingWithAnErrorBeforeRestoringAutoCommit() throws Exception {
+    List<UserRecord> users = users(3, -1);
+    users.get(1).set(USERS.NAME, "error");
+
+    BulkLoadResult result = bulkLoader.into(USERS).load(users);
+
+    assertEquals(1, result.getFailures().size());
+    assertTrue(result.getFailures().get(0).getCause() instanceof AssertionError);
+    Connection connection = opened.get(0);
+    InOrder inOrder = inOrder(connection);
+    inOrder.verify(connection).rollback();
+    inOrder.verify(connection).setAutoCommit(true);
+    verify(connection, never()).commit();
+  }
+
+  @Test
+  public void failingListenerDoesNotFailLoadedChunks() {
+    BulkLoadResult result = bulkLoader.into(USERS)
+        .commitSize(3)
+        .listener(new BulkLoadListener() {
+          @Override
+          public void chunkLoaded(final int chunk, final long firstRow, final int rows) {
+            throw new IllegalStateException("listener failed");
+          }
+        })
+        .load(users(10, -1));
+
+    assertTrue(result.isSuccessful());
+    assertEquals(10, result.getLoadedRows());
+  }
+
+  @Test
+  public void stopsAfterFailureWhenAborting() {
+    BulkLoadResult result = bulkLoader.into(USERS).commitSize(3).parallelism(1).abortOnError().load(users(10, 4));
+
+    assertFalse(result.isComplete());
+    assertEquals(2, result.getChunks());
+    assertEquals(3, result.getLoadedRows());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveCommitSize() {
+    bulkLoader.into(USERS).commitSize(0);
+  }
+
+  private static List<UserRecord> users(final int count, final int bad) {
+    DSLContext create = DSL.using(DataSourceModule.DEFAULT_DIALECT);
+    List<UserRecord> users = new ArrayList<UserRecord>();
+    for (int id = 0; id < count; id++) {
+      UserRecord user = create.newRecord(USERS);
+      user.set(USERS.ID, id);
+      user.set(USERS.NAME, id == bad ? "bad" : "user" + id);
+      users.add(user);
+    }
+    return users;
+  }
+}
@@ -0,0 +1,143 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.adamlewis.guice.persist.jooq.utils.Injectors;
+import com.google.inject.Injector;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class ConcurrencyLimitTest {
+  private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+  private Injector injector;
+  private JooqPersistService persistService;
+
+  @After
+  public void tearDown() {
+    otherThread.shutdownNow();
+    if (null != persistService && persistService.isWorking()) {
+      persistService.end();
+    }
+  }
+
+  @Test
+  public void rejectsUnitOfWorkBeyondLimit() throws Exception {
+    givenService(new JooqPersistModule().concurrencyLimit(ConcurrencyLimit.fixed(1)));
+    persistService.begin();
+
+    try {
+      beginAndEndOnOtherThread(false).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ConnectionRejectedException);
+    }
+
+    persistService.end();
+    beginAndEndOnOtherThread(false).get();
+  }
+
+  @Test
+  public void admitsWaitingUnitOfWorkOnceConnectionIsReturned() throws Exception {
+    givenService(new JooqPersistModule()
+                     .concurrencyLimit(ConcurrencyLimit.fixed(1).maxWait(10, TimeUnit.SECONDS)));
+    persistService.begin();
+
+    Future<?> waiting = beginAndEndOnOtherThread(false);
+    Thread.sleep(50);
+    assertFalse(waiting.isDone());
+
+    persistService.end();
+    waiting.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void limitsReadOnlyUnitsOfWorkSeparately() throws Exception {
+    givenService(new JooqPersistModule()
+                     .concurrencyLimit(ConcurrencyLimit.fixed(1))
+                     .readOnlyConcurrencyLimit(ConcurrencyLimit.fixed(1)));
+    persistService.begin();
+
+    beginAndEndOnOtherThread(true).get();
+  }
+
+  @Test
+  public void limitsDetachedUnitsOfWork() throws Exception {
+    givenService(new JooqPersistModule().readOnlyConcurrencyLimit(ConcurrencyLimit.fixed(1)));
+    persistService.begin(true);
+
+    try {
+      injector.getInstance(QueryStreams.class).stream(dsl -> dsl.selectOne());
+      fail();
+    } catch (ConnectionRejectedException expected) {
+    }
+  }
+
+  @Test
+  public void adaptiveLimitShrinksOnSlowUnitsOfWorkAndRecovers() {
+    ConcurrencyLimit limit = ConcurrencyLimit.adaptive(2, 20, 1, TimeUnit.MILLISECONDS);
+
+    limit.acquire(MetricsListener.NONE);
+    limit.release(TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(18, limit.getLimit());
+    assertEquals(18, limit.getAvailablePermits());
+
+    for (int i = 0; i < 18; i++) {
+      limit.acquire(MetricsListener.NONE);
+      limit.release(0);
+    }
+    assertEquals(19, limit.getLimit());
+    assertEquals(19, limit.getAvailablePermits());
+  }
+
+  @Test
+  public void reportsRejections() {
+    HistogramMetricsListener metrics = new HistogramMetricsListener();
+    ConcurrencyLimit limit = ConcurrencyLimit.fixed(1);
+    limit.acquire(metrics);
+
+    try {
+      limit.acquire(metrics);
+      fail();
+    } catch (ConnectionRejectedException expected) {
+      assertEquals(1, metrics.getRejectedConnections());
+    }
+  }
+
+  @Test
+  public void interruptedWaitIsNotReportedAsRejection() {
+    HistogramMetricsListener metrics = new HistogramMetricsListener();
+    ConcurrencyLimit limit = ConcurrencyLimit.fixed(1).maxWait(10, TimeUnit.SECONDS);
+    limit.acquire(metrics);
+
+    Thread.currentThread().interrupt();
+    try {
+      limit.acquire(metrics);
+      fail();
+    } catch (CancellationException expected) {
+      assertTrue(Thread.interrupted());
+      assertEquals(0, metrics.getRejectedConnections());
+    }
+  }
+
+  private Future<?> beginAndEndOnOtherThread(final boolean readOnly) {
+    return otherThread.submit(() -> {
+      persistService.begin(readOnly);
+      persistService.end();
+    });
+  }
+
+  private void givenService(final JooqPersistModule module) throws SQLException {
+    injector = Injectors.withConnections(() -> mock(Connection.class), module);
+    persistService = injector.getInstance(JooqPersistService.class);
+  }
+}
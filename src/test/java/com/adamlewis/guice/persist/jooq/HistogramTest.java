@@ -0,0 +1,52 @@
+package com.adamlewis.guice.persist.jooq;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+  @Test
+  public void isEmptyInitially() {
+    Histogram histogram = new Histogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(99));
+    assertEquals(0, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void recordsValues() {
+    Histogram histogram = new Histogram();
+    for (long value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(5050, histogram.getSum());
+    assertEquals(100, histogram.getMax());
+    assertEquals(50.5, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void percentilesAreWithinAFactorOfTwo() {
+    Histogram histogram = new Histogram();
+    for (long value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+
+    assertEquals(63, histogram.getPercentile(50));
+    assertEquals(100, histogram.getPercentile(99));
+    assertEquals(1, histogram.getPercentile(0));
+  }
+
+  @Test
+  public void recordsExtremes() {
+    Histogram histogram = new Histogram();
+    histogram.record(0);
+    histogram.record(Long.MAX_VALUE);
+
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+  }
+}
@@ -1,16 +1,24 @@
 package com.adamlewis.guice.persist.jooq;
 
 import java.lang.reflect.Method;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Arrays;
 
 import com.adamlewis.guice.persist.jooq.utils.MockConnection;
 import com.adamlewis.guice.persist.jooq.utils.Providers;
 import com.google.inject.persist.Transactional;
-import com.google.inject.persist.UnitOfWork;
+import javax.sql.DataSource;
 import org.aopalliance.intercept.MethodInvocation;
-import org.jooq.impl.DefaultConnectionProvider;
+import org.jooq.exception.DataAccessException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -22,11 +30,11 @@ public class JdbcLocalTxnInterceptorTest {
   @Mock
   private JooqPersistService jooqPersistService;
   @Mock
-  private UnitOfWork unitOfWork;
-  @Mock
   private MockConnection connection;
   @Mock
   private MethodInvocation methodInvocation;
+  @Mock
+  private DataSource dataSource;
 
   private JdbcLocalTxnInterceptor interceptor;
 
@@ -34,30 +42,62 @@ public class JdbcLocalTxnInterceptorTest {
   public void transaction() {
   }
 
+  @Transactional
+  @ReadOnly
+  public void readOnlyTransaction() {
+  }
+
+  @Transactional
+  @Batched(size = 2)
+  public void batchedTransaction() {
+  }
+
+  @Transactional
+  @Retryable(attempts = 3, backoffMillis = 0)
+  public void retryableTransaction() {
+  }
+
+  @Transactional
+  @Propagate(Propagation.NESTED)
+  public void nestedTransaction() {
+  }
+
+  @Transactional
+  @Propagate(Propagation.REQUIRES_NEW)
+  public void newTransaction() {
+  }
+
+  @Transactional
+  @TransactionAttributes(isolation = Isolation.SERIALIZABLE)
+  public void serializableTransaction() {
+  }
+
   @Before
   public void setUp() throws Exception {
-    interceptor = new JdbcLocalTxnInterceptor(Providers.of(jooqPersistService), Providers.of(unitOfWork));
+    interceptor = new JdbcLocalTxnInterceptor(Providers.of(jooqPersistService));
 
     when(connection.getAutoCommit()).thenCallRealMethod();
     doCallRealMethod().when(connection).setAutoCommit(anyBoolean());
     connection.setAutoCommit(true);
 
-    DefaultConnectionProvider connectionProvider = new DefaultConnectionProvider(connection);
-    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
-    when(jooqPersistService.isWorking()).thenReturn(false);
+    when(dataSource.getConnection()).thenReturn(connection);
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    connectionProvider.acquire();
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
 
     // Method is final. Mockito doesn't support mocking final classes. Using reflection
     Method defaultTransaction = JdbcLocalTxnInterceptorTest.class.getMethod("transaction");
     when(methodInvocation.getMethod()).thenReturn(defaultTransaction);
+    when(methodInvocation.getThis()).thenReturn(this);
   }
 
   @Test
   public void unitOfWorkEnds() throws Throwable {
     interceptor.invoke(methodInvocation);
 
-    verify(unitOfWork).begin();
+    verify(jooqPersistService).begin(false);
     verify(connection).commit();
-    verify(unitOfWork).end();
+    verify(jooqPersistService).end();
   }
 
   @Test
@@ -70,9 +110,9 @@ public class JdbcLocalTxnInterceptorTest {
     } catch (Exception ignored) {
     }
 
-    verify(unitOfWork).begin();
+    verify(jooqPersistService).begin(false);
     verify(connection).commit();
-    verify(unitOfWork).end();
+    verify(jooqPersistService).end();
   }
 
   @Test
@@ -85,8 +125,453 @@ public class JdbcLocalTxnInterceptorTest {
     } catch (RuntimeException ignored) {
     }
 
-    verify(unitOfWork).begin();
+    verify(jooqPersistService).begin(false);
+    verify(connection).rollback();
+    verify(jooqPersistService).end();
+  }
+
+  @Test
+  public void lazyConnectionIsNotAcquiredByTransaction() throws Throwable {
+    DataSource lazyDataSource = mock(DataSource.class);
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(lazyDataSource);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+
+    interceptor.invoke(methodInvocation);
+
+    verify(lazyDataSource, never()).getConnection();
+    verify(connection, never()).commit();
+    verify(jooqPersistService).end();
+    assertTrue(connectionProvider.getAutoCommit());
+  }
+
+  @Test
+  public void lazyConnectionAppliesPendingAutoCommit() throws Throwable {
+    final UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+    when(methodInvocation.proceed()).thenAnswer(invocation -> connectionProvider.acquire().getAutoCommit());
+
+    assertEquals(false, interceptor.invoke(methodInvocation));
+
+    verify(connection).commit();
+    assertTrue(connection.getAutoCommit());
+  }
+
+  @Test
+  public void joinsEnclosingTransaction() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    connectionProvider.setAutoCommit(false);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+
+    interceptor.invoke(methodInvocation);
+
+    verify(jooqPersistService, never()).begin(anyBoolean());
+    verify(connection, never()).commit();
+    verify(jooqPersistService, never()).end();
+    assertFalse(connectionProvider.getAutoCommit());
+  }
+
+  @Test
+  public void unitOfWorkEndsOnError() throws Throwable {
+    when(methodInvocation.proceed()).thenThrow(AssertionError.class);
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("error expected");
+    } catch (AssertionError ignored) {
+    }
+
+    verify(connection).rollback();
+    verify(jooqPersistService).end();
+    assertTrue(connection.getAutoCommit());
+  }
+
+  @Test
+  public void readOnlyTransactionBeginsReadOnlyWork() throws Throwable {
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("readOnlyTransaction"));
+
+    interceptor.invoke(methodInvocation);
+
+    verify(jooqPersistService).begin(true);
+    verify(jooqPersistService).end();
+  }
+
+  @Test
+  public void readOnlyTransactionFlagsConnectionOfUnitOfWorkBegunElsewhere() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    connectionProvider.acquire();
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("readOnlyTransaction"));
+
+    interceptor.invoke(methodInvocation);
+
+    verify(jooqPersistService, never()).begin(anyBoolean());
+    InOrder inOrder = inOrder(connection);
+    inOrder.verify(connection).setReadOnly(true);
+    inOrder.verify(connection).setAutoCommit(false);
+    inOrder.verify(connection).commit();
+    inOrder.verify(connection).setAutoCommit(true);
+    inOrder.verify(connection).setReadOnly(false);
+  }
+
+  @Test
+  public void readWriteTransactionCannotJoinReadOnlyTransactionOfUnitOfWorkBegunElsewhere() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    connectionProvider.setReadOnlyTransaction(true);
+    connectionProvider.setAutoCommit(false);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (IllegalStateException ignored) {
+    }
+
+    verify(methodInvocation, never()).proceed();
+  }
+
+  @Test
+  public void readWriteTransactionCannotJoinReadOnlyTransaction() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource, true);
+    connectionProvider.setAutoCommit(false);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (IllegalStateException ignored) {
+    }
+
+    verify(methodInvocation, never()).proceed();
+  }
+
+  @Test
+  public void readOnlyTransactionWithoutStatementsSkipsDriverCalls() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource, true);
+    connectionProvider.acquire();
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("readOnlyTransaction"));
+
+    interceptor.invoke(methodInvocation);
+
+    verify(connection).setReadOnly(true);
+    verify(connection, never()).commit();
+    verify(connection, times(1)).setAutoCommit(anyBoolean());
+  }
+
+  @Test
+  public void batchedTransactionSendsDmlInBatches() throws Throwable {
+    PreparedStatement statement = givenBatchedTransactionInserting(3);
+    when(statement.executeBatch()).thenReturn(new int[]{1, 1}, new int[]{1});
+
+    interceptor.invoke(methodInvocation);
+
+    verify(statement, times(3)).addBatch();
+    verify(statement, times(2)).executeBatch();
+    verify(statement, never()).executeUpdate();
+    verify(connection).commit();
+  }
+
+  @Test
+  public void batchedTransactionReportsFailedStatements() throws Throwable {
+    PreparedStatement statement = givenBatchedTransactionInserting(1);
+    when(statement.executeBatch()).thenThrow(new BatchUpdateException(new int[]{Statement.EXECUTE_FAILED}));
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (BatchFlushException e) {
+      assertEquals(Arrays.asList(0), e.getFailedStatements());
+    }
+
+    verify(connection).rollback();
+    verify(jooqPersistService).end();
+  }
+
+  @Test
+  public void rolledBackBatchIsDiscardedUnsent() throws Throwable {
+    PreparedStatement statement = givenBatchedTransactionInserting(1, new IllegalStateException());
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (IllegalStateException expected) {
+    }
+
+    verify(statement, never()).executeBatch();
+    verify(statement).close();
     verify(connection).rollback();
-    verify(unitOfWork).end();
+  }
+
+  @Test
+  public void rollingBackToSavepointDiscardsBatchUnsent() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement(anyString())).thenReturn(statement);
+    Savepoint savepoint = mock(Savepoint.class);
+    when(connection.setSavepoint()).thenReturn(savepoint);
+    connectionProvider.setAutoCommit(false);
+    connectionProvider.setBatchSize(2);
+
+    Savepoint set = connectionProvider.setSavepoint();
+    Connection batched = connectionProvider.acquire();
+    batched.prepareStatement("insert into t values (?)").executeUpdate();
+    connectionProvider.release(batched);
+    connectionProvider.rollback(set);
+
+    verify(statement, never()).executeBatch();
+    verify(statement).close();
+    verify(connection).rollback(savepoint);
+  }
+
+  @Test
+  public void reportsTransactionMetrics() throws Throwable {
+    HistogramMetricsListener metrics = new HistogramMetricsListener();
+    final UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource, false, metrics);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+    when(methodInvocation.proceed())
+        .thenAnswer(invocation -> interceptor.invoke(methodInvocation))
+        .thenReturn(null)
+        .thenThrow(RuntimeException.class);
+
+    interceptor.invoke(methodInvocation);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (RuntimeException ignored) {
+    }
+
+    assertEquals(1, metrics.getCommits());
+    assertEquals(1, metrics.getRollbacks());
+    assertEquals(Long.valueOf(1), metrics.getRollbackCauses().get(RuntimeException.class));
+    assertEquals(2, metrics.getTransactionDurations().get(methodInvocation.getMethod()).getCount());
+    assertEquals(1, metrics.getNestingDepths().getCount());
+    assertEquals(2, metrics.getNestingDepths().getMax());
+  }
+
+  @Test
+  public void reportsCommitEvenIfAutoCommitCannotBeRestored() throws Throwable {
+    HistogramMetricsListener metrics = new HistogramMetricsListener();
+    final UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource, false, metrics);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+    when(methodInvocation.proceed()).thenAnswer(invocation -> {
+      connectionProvider.release(connectionProvider.acquire());
+      return null;
+    });
+    doCallRealMethod().doThrow(new SQLException("broken")).when(connection).setAutoCommit(anyBoolean());
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (DataAccessException expected) {
+    }
+
+    verify(connection).commit();
+    assertEquals(1, metrics.getCommits());
+    assertEquals(1, connectionProvider.enterTransactional());
+  }
+
+  @Test
+  public void retriesSerializationFailures() throws Throwable {
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("retryableTransaction"));
+    when(methodInvocation.proceed())
+        .thenThrow(serializationFailure("40001"))
+        .thenThrow(serializationFailure("40P01"))
+        .thenReturn("done");
+
+    assertEquals("done", interceptor.invoke(methodInvocation));
+
+    verify(methodInvocation, times(3)).proceed();
+    verify(connection, times(2)).rollback();
+    verify(connection).commit();
+    verify(jooqPersistService, times(1)).begin(false);
+    verify(jooqPersistService, times(1)).end();
+  }
+
+  @Test
+  public void retriesSerializationFailuresChainedToABatchFailure() throws Throwable {
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("retryableTransaction"));
+    BatchUpdateException batchFailure = new BatchUpdateException("batch failed", "XX000", new int[0]);
+    batchFailure.setNextException(new SQLException("could not serialize access", "40001"));
+    // a cycle must not keep the check from ending
+    batchFailure.getNextException().setNextException(batchFailure);
+    when(methodInvocation.proceed())
+        .thenThrow(new DataAccessException("failed", batchFailure))
+        .thenReturn("done");
+
+    assertEquals("done", interceptor.invoke(methodInvocation));
+
+    verify(methodInvocation, times(2)).proceed();
+  }
+
+  @Test
+  public void givesUpRetryingAfterLastAttempt() throws Throwable {
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("retryableTransaction"));
+    when(methodInvocation.proceed()).thenThrow(serializationFailure("40001"));
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (DataAccessException ignored) {
+    }
+
+    verify(methodInvocation, times(3)).proceed();
+    verify(connection, times(3)).rollback();
+  }
+
+  @Test
+  public void doesNotRetryOtherFailures() throws Throwable {
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("retryableTransaction"));
+    when(methodInvocation.proceed()).thenThrow(serializationFailure("23505"));
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (DataAccessException ignored) {
+    }
+
+    verify(methodInvocation, times(1)).proceed();
+  }
+
+  @Test
+  public void doesNotRetryJoinedTransaction() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider =
+        new UnitOfWorkConnectionProvider(dataSource, false, new HistogramMetricsListener());
+    connectionProvider.setAutoCommit(false);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("retryableTransaction"));
+    when(methodInvocation.proceed()).thenThrow(serializationFailure("40001"));
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (DataAccessException ignored) {
+    }
+
+    verify(methodInvocation, times(1)).proceed();
+    verify(connection, never()).rollback();
+  }
+
+  @Test
+  public void nestedTransactionRollsBackToSavepoint() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = givenEnclosingTransaction();
+    Savepoint savepoint = mock(Savepoint.class);
+    when(connection.setSavepoint()).thenReturn(savepoint);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("nestedTransaction"));
+    when(methodInvocation.proceed()).thenThrow(RuntimeException.class);
+
+    try {
+      interceptor.invoke(methodInvocation);
+      fail("exception expected");
+    } catch (RuntimeException ignored) {
+    }
+
+    verify(connection).rollback(savepoint);
+    verify(connection, never()).rollback();
+    verify(connection, never()).commit();
+    assertFalse(connectionProvider.getAutoCommit());
+  }
+
+  @Test
+  public void nestedTransactionReleasesSavepoint() throws Throwable {
+    givenEnclosingTransaction();
+    Savepoint savepoint = mock(Savepoint.class);
+    when(connection.setSavepoint()).thenReturn(savepoint);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("nestedTransaction"));
+
+    interceptor.invoke(methodInvocation);
+
+    verify(connection).releaseSavepoint(savepoint);
+    verify(connection, never()).rollback(any(Savepoint.class));
+    verify(connection, never()).commit();
+  }
+
+  @Test
+  public void requiresNewTransactionSuspendsUnitOfWork() throws Throwable {
+    UnitOfWorkConnectionProvider enclosing = givenEnclosingTransaction();
+    Connection newConnection = mock(Connection.class);
+    DataSource newDataSource = mock(DataSource.class);
+    when(newDataSource.getConnection()).thenReturn(newConnection);
+    UnitOfWorkConnectionProvider inner = new UnitOfWorkConnectionProvider(newDataSource);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(enclosing, inner);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("newTransaction"));
+    when(methodInvocation.proceed()).thenAnswer(invocation -> inner.acquire());
+
+    interceptor.invoke(methodInvocation);
+
+    InOrder order = inOrder(jooqPersistService, newConnection);
+    order.verify(jooqPersistService).detach();
+    order.verify(jooqPersistService).begin(false);
+    order.verify(newConnection).commit();
+    order.verify(jooqPersistService).end();
+    order.verify(jooqPersistService).attach(enclosing);
+    verify(connection, never()).commit();
+  }
+
+  @Test
+  public void appliesAndRestoresIsolation() throws Throwable {
+    when(connection.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_READ_COMMITTED);
+    when(methodInvocation.getMethod())
+        .thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("serializableTransaction"));
+
+    interceptor.invoke(methodInvocation);
+
+    InOrder order = inOrder(connection);
+    order.verify(connection).setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    order.verify(connection).commit();
+    order.verify(connection).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+  }
+
+  @Test
+  public void skipsIsolationChangeIfAlreadySet() throws Throwable {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    connectionProvider.open();
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+    when(connection.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_SERIALIZABLE);
+    when(methodInvocation.getMethod())
+        .thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("serializableTransaction"));
+
+    interceptor.invoke(methodInvocation);
+    interceptor.invoke(methodInvocation);
+
+    verify(connection, times(1)).getTransactionIsolation();
+    verify(connection, never()).setTransactionIsolation(anyInt());
+  }
+
+  private UnitOfWorkConnectionProvider givenEnclosingTransaction() {
+    UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    connectionProvider.open();
+    connectionProvider.setAutoCommit(false);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(connectionProvider);
+    return connectionProvider;
+  }
+
+  private static DataAccessException serializationFailure(final String sqlState) {
+    return new DataAccessException("failed", new SQLException("could not serialize access", sqlState));
+  }
+
+  private PreparedStatement givenBatchedTransactionInserting(final int rows) throws Throwable {
+    return givenBatchedTransactionInserting(rows, null);
+  }
+
+  private PreparedStatement givenBatchedTransactionInserting(final int rows, final RuntimeException failure)
+      throws Throwable {
+    final UnitOfWorkConnectionProvider connectionProvider = new UnitOfWorkConnectionProvider(dataSource);
+    when(jooqPersistService.getConnectionWrapper()).thenReturn(null, connectionProvider);
+    when(methodInvocation.getMethod()).thenReturn(JdbcLocalTxnInterceptorTest.class.getMethod("batchedTransaction"));
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement(anyString())).thenReturn(statement);
+    when(methodInvocation.proceed()).thenAnswer(invocation -> {
+      for (int i = 0; i < rows; i++) {
+        Connection batched = connectionProvider.acquire();
+        batched.prepareStatement("insert into t values (?)").executeUpdate();
+        connectionProvider.release(batched);
+      }
+      if (null != failure) {
+        throw failure;
+      }
+      return null;
+    });
+    return statement;
   }
 }
\ No newline at end of file
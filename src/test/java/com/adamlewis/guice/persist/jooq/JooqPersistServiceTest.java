@@ -1,22 +1,42 @@
 package com.adamlewis.guice.persist.jooq;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.adamlewis.guice.persist.jooq.modules.ConfigurationModule;
 import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
 import com.adamlewis.guice.persist.jooq.modules.SettingsModule;
+import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
 import javax.sql.DataSource;
 import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteListenerProvider;
 import org.jooq.conf.BackslashEscaping;
+import org.jooq.impl.DefaultConfiguration;
+import org.jooq.impl.DefaultExecuteListener;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
 import org.junit.Before;
 import org.junit.Test;
 
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class JooqPersistServiceTest {
@@ -78,6 +98,55 @@ public class JooqPersistServiceTest {
     assertEquals(BackslashEscaping.DEFAULT, transactionConfiguration.settings().getBackslashEscaping());
   }
 
+  @Test
+  public void keepsProvidersOfConfiguration() {
+    final ExecuteListenerProvider listenerProvider = new DefaultExecuteListenerProvider(new DefaultExecuteListener());
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Configuration.class).toInstance(new DefaultConfiguration()
+            .set(ConfigurationModule.DIALECT)
+            .set(listenerProvider));
+      }
+    });
+    jooqPersistService.begin();
+
+    ExecuteListenerProvider[] listenerProviders = jooqPersistService.get().configuration().executeListenerProviders();
+    assertEquals(2, listenerProviders.length);
+    assertSame(listenerProvider, listenerProviders[0]);
+  }
+
+  @Test
+  public void reusesContextAcrossUnitsOfWork() {
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule();
+    jooqPersistService.begin();
+    DSLContext first = jooqPersistService.get();
+    jooqPersistService.end();
+
+    jooqPersistService.begin();
+    assertSame(first, jooqPersistService.get());
+  }
+
+  @Test
+  public void readOnlyWorkUsesReplica() throws Exception {
+    final DataSource replica = mock(DataSource.class);
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(DataSource.class).annotatedWith(Replica.class).toInstance(replica);
+      }
+    });
+    Connection connectionMock = mock(Connection.class);
+    when(replica.getConnection()).thenReturn(connectionMock);
+
+    jooqPersistService.begin(true);
+    jooqPersistService.end();
+
+    verify(injector.getInstance(DataSource.class), never()).getConnection();
+    verify(connectionMock).setReadOnly(true);
+    verify(connectionMock).close();
+  }
+
   @Test(expected = IllegalStateException.class)
   public void throwsIfUnitOfWorkIsNotStarted() {
     JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule();
@@ -85,9 +154,190 @@ public class JooqPersistServiceTest {
     jooqPersistService.get();
   }
 
+  @Test
+  public void lazyConnectionsAreAcquiredOnFirstUse() throws Exception {
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule(new JooqPersistModule().lazyConnections());
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    Connection connectionMock = mock(Connection.class);
+    when(dataSource.getConnection()).thenReturn(connectionMock);
+
+    jooqPersistService.begin();
+    verify(dataSource, never()).getConnection();
+
+    assertEquals(connectionMock, jooqPersistService.get().configuration().connectionProvider().acquire());
+    jooqPersistService.end();
+
+    verify(connectionMock).close();
+  }
+
+  @Test
+  public void lazyConnectionsAreNotAcquiredIfUnused() throws Exception {
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule(new JooqPersistModule().lazyConnections());
+    DataSource dataSource = injector.getInstance(DataSource.class);
+
+    jooqPersistService.begin();
+    jooqPersistService.end();
+
+    verify(dataSource, never()).getConnection();
+  }
+
+  @Test
+  public void reportsUnitOfWorkMetrics() throws Exception {
+    final HistogramMetricsListener metrics = new HistogramMetricsListener();
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(MetricsListener.class).toInstance(metrics);
+      }
+    });
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+
+    jooqPersistService.begin();
+    jooqPersistService.get().execute("update t set x = 1");
+    jooqPersistService.get().execute("update t set x = 2");
+    jooqPersistService.end();
+
+    assertEquals(1, metrics.getUnitOfWorkDurations().getCount());
+    assertEquals(2, metrics.getQueriesPerUnitOfWork().getMax());
+    assertEquals(2, metrics.getQueryDurations().getCount());
+    assertEquals(1, metrics.getConnectionWaits().getCount());
+    assertEquals(1, metrics.getConnectionHoldTimes().getCount());
+  }
+
+  @Test
+  public void addsNoListenerWithoutMetrics() {
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule();
+    jooqPersistService.begin();
+
+    assertSame(MetricsListener.NONE, jooqPersistService.getMetrics());
+    for (ExecuteListenerProvider listenerProvider : jooqPersistService.get().configuration().executeListenerProviders()) {
+      assertFalse(listenerProvider.provide() instanceof QueryMetricsListener);
+    }
+  }
+
+  @Test
+  public void watchdogTracksOpenUnitsOfWork() {
+    JooqPersistService jooqPersistService =
+        givenJooqPersistServiceWithModule(new JooqPersistModule().watchdog(1, TimeUnit.MINUTES));
+    jooqPersistService.start();
+    try {
+      jooqPersistService.begin();
+      assertEquals(1, jooqPersistService.getWatchdog().size());
+
+      jooqPersistService.end();
+      assertEquals(0, jooqPersistService.getWatchdog().size());
+    } finally {
+      jooqPersistService.stop();
+    }
+  }
+
+  @Test
+  public void warmUpOpensConnectionsAndPreparesQueriesOnce() throws Exception {
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule(
+        new JooqPersistModule().warmUp(2),
+        new AbstractModule() {
+          @Override
+          protected void configure() {
+            Multibinder.newSetBinder(binder(), WarmUpQuery.class).addBinding()
+                .toInstance(create -> create.selectFrom(USERS).where(USERS.ID.eq((Integer) null)));
+          }
+        });
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    List<Connection> connections = new ArrayList<>();
+    when(dataSource.getConnection()).thenAnswer(invocation -> {
+      Connection connection = spy(new MockConnection(context -> new MockResult[]{new MockResult(0, null)}));
+      connections.add(connection);
+      return connection;
+    });
+
+    jooqPersistService.start();
+    jooqPersistService.start();
+
+    assertEquals(2, connections.size());
+    for (Connection connection : connections) {
+      verify(connection).prepareStatement(startsWith("select 1"));
+      verify(connection).prepareStatement("select users.id, users.name from users where users.id = ?");
+      verify(connection).close();
+    }
+  }
+
+  @Test
+  public void stopWaitsForUnitsOfWorkToEnd() throws Exception {
+    JooqPersistService jooqPersistService =
+        givenJooqPersistServiceWithModule(new JooqPersistModule().lazyConnections().drainOnStop(10, TimeUnit.SECONDS));
+    CountDownLatch begun = new CountDownLatch(1);
+    AtomicBoolean ended = new AtomicBoolean();
+    Thread worker = new Thread(() -> {
+      jooqPersistService.begin();
+      begun.countDown();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ended.set(true);
+      jooqPersistService.end();
+    });
+    worker.start();
+    begun.await();
+
+    jooqPersistService.stop();
+
+    assertTrue(ended.get());
+  }
+
+  @Test
+  public void stopWaitsForDetachedUnitsOfWorkToEnd() throws Exception {
+    JooqPersistService jooqPersistService =
+        givenJooqPersistServiceWithModule(new JooqPersistModule().lazyConnections().drainOnStop(10, TimeUnit.SECONDS));
+    UnitOfWorkConnectionProvider detached = jooqPersistService.newDetachedWork(true, null);
+    AtomicBoolean ended = new AtomicBoolean();
+    Thread worker = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ended.set(true);
+      detached.close();
+    });
+    worker.start();
+
+    jooqPersistService.stop();
+
+    assertTrue(ended.get());
+  }
+
+  @Test
+  public void appliesTransactionLimitsToStatements() throws Exception {
+    JooqPersistService jooqPersistService = givenJooqPersistServiceWithModule();
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    Connection connectionMock = mock(Connection.class);
+    PreparedStatement statementMock = mock(PreparedStatement.class);
+    when(dataSource.getConnection()).thenReturn(connectionMock);
+    when(connectionMock.prepareStatement(anyString())).thenReturn(statementMock);
+
+    jooqPersistService.begin();
+    UnitOfWorkConnectionProvider conn = jooqPersistService.getConnectionWrapper();
+    conn.setAutoCommit(false);
+    conn.setLimits(System.nanoTime() + TimeUnit.SECONDS.toNanos(30), 1);
+    jooqPersistService.get().execute("update t set x = 1");
+    try {
+      jooqPersistService.get().execute("update t set x = 2");
+      fail("exception expected");
+    } catch (TransactionLimitExceededException expected) {
+    }
+
+    verify(statementMock).setQueryTimeout(30);
+    verify(statementMock, times(1)).execute();
+  }
+
   private JooqPersistService givenJooqPersistServiceWithModule(Module... modules) {
     Set<Module> moduleList = new HashSet<>(Arrays.asList(modules));
-    moduleList.add(new JooqPersistModule());
+    if (moduleList.stream().noneMatch(module -> module instanceof JooqPersistModule)) {
+      moduleList.add(new JooqPersistModule());
+    }
     moduleList.add(new DataSourceModule());
     injector = Guice.createInjector(moduleList);
     return injector.getInstance(JooqPersistService.class);
@@ -0,0 +1,119 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.Record1;
+import org.jooq.Result;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+public class ParallelQueriesTest {
+  private final AtomicInteger connections = new AtomicInteger();
+  private volatile CountDownLatch running = new CountDownLatch(0);
+  private ParallelQueries parallelQueries;
+
+  @Before
+  public void setUp() throws SQLException {
+    parallelQueries = givenParallelQueries(new JooqPersistModule().parallelQueries(2));
+  }
+
+  private ParallelQueries givenParallelQueries(final JooqPersistModule module) throws SQLException {
+    Injector injector = Guice.createInjector(module, new DataSourceModule());
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    when(dataSource.getConnection()).thenAnswer(invocation -> {
+      connections.incrementAndGet();
+      return new MockConnection(context -> {
+        running.countDown();
+        try {
+          // waits for the other queries to run at the same time
+          running.await();
+        } catch (InterruptedException e) {
+          throw new SQLException("cancelled");
+        }
+        if (context.sql().contains("broken")) {
+          throw new SQLException("broken");
+        }
+        return new MockResult[]{new MockResult(1, countResult())};
+      });
+    });
+    return injector.getInstance(ParallelQueries.class);
+  }
+
+  @Test
+  public void runsQueriesInParallel() throws Exception {
+    running = new CountDownLatch(2);
+    try (ParallelQueries.Fork fork = parallelQueries.fork()) {
+      Future<Integer> first = fork.submit(dsl -> dsl.fetchCount(DSL.table("a")));
+      Future<Integer> second = fork.submit(dsl -> dsl.fetchCount(DSL.table("c")));
+      fork.join(10, TimeUnit.SECONDS);
+
+      assertEquals(Integer.valueOf(1), first.get());
+      assertEquals(Integer.valueOf(1), second.get());
+    }
+    assertEquals(2, connections.get());
+  }
+
+  @Test(expected = DataAccessException.class)
+  public void rethrowsFailure() throws Exception {
+    try (ParallelQueries.Fork fork = parallelQueries.fork()) {
+      fork.submit(dsl -> dsl.fetch("select broken"));
+      fork.join(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void cancelsQueriesAfterTimeout() {
+    running = new CountDownLatch(2);
+    try (ParallelQueries.Fork fork = parallelQueries.fork()) {
+      Future<Integer> stuck = fork.submit(dsl -> dsl.fetchCount(DSL.table("a")));
+      try {
+        fork.join(50, TimeUnit.MILLISECONDS);
+        fail();
+      } catch (TimeoutException expected) {
+        assertTrue(stuck.isCancelled());
+      }
+    }
+  }
+
+  @Test
+  public void rejectsQueriesBeyondQueueSize() throws SQLException {
+    ParallelQueries bounded = givenParallelQueries(new JooqPersistModule().parallelQueries(1, 1));
+    running = new CountDownLatch(2);
+    try (ParallelQueries.Fork fork = bounded.fork()) {
+      Future<Integer> first = fork.submit(dsl -> dsl.fetchCount(DSL.table("a")));
+      Future<Integer> queued = fork.submit(dsl -> dsl.fetchCount(DSL.table("b")));
+      try {
+        fork.submit(dsl -> dsl.fetchCount(DSL.table("c")));
+        fail();
+      } catch (RejectedExecutionException expected) {
+        assertFalse(first.isDone());
+        assertFalse(queued.isDone());
+      }
+    }
+  }
+
+  private static Result<Record1<Integer>> countResult() {
+    DSLContext create = DSL.using(DataSourceModule.DEFAULT_DIALECT);
+    Result<Record1<Integer>> result = create.newResult(DSL.count());
+    result.add(create.newRecord(DSL.count()).values(1));
+    return result;
+  }
+}
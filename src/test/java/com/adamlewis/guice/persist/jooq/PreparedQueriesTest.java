@@ -0,0 +1,175 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.adamlewis.guice.persist.jooq.utils.Injectors;
+import com.adamlewis.guice.persist.jooq.utils.Users.UserRecord;
+import com.google.inject.Injector;
+import org.jooq.DSLContext;
+import org.jooq.DataType;
+import org.jooq.EnumType;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.Schema;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Test;
+
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class PreparedQueriesTest {
+  private final List<String> statements = new ArrayList<String>();
+  private final List<List<Object>> bindings = new ArrayList<List<Object>>();
+  private final List<PreparedStatement> prepared = new ArrayList<PreparedStatement>();
+  private Connection connection;
+  private JooqPersistService persistService;
+  private PreparedQueries preparedQueries;
+
+  private void createService(final JooqPersistModule module) throws SQLException {
+    connection = spy(new MockConnection(context -> {
+      statements.add(context.sql());
+      bindings.add(Arrays.asList(context.bindings()));
+      DSLContext create = DSL.using(DataSourceModule.DEFAULT_DIALECT);
+      Result<UserRecord> result = create.newResult(USERS);
+      result.add(create.newRecord(USERS, new Object[]{context.bindings()[0], "user" + context.bindings()[0]}));
+      return new MockResult[]{new MockResult(1, result)};
+    }));
+    doAnswer(invocation -> {
+      PreparedStatement statement = spy((PreparedStatement) invocation.callRealMethod());
+      prepared.add(statement);
+      return statement;
+    }).when(connection).prepareStatement(anyString());
+    Injector injector = Injectors.withConnections(() -> connection, module);
+    persistService = injector.getInstance(JooqPersistService.class);
+    preparedQueries = injector.getInstance(PreparedQueries.class);
+  }
+
+  private static PreparedQuery userById(final PreparedQueries preparedQueries, final boolean keepStatement) {
+    return preparedQueries.prepare(dsl -> dsl.selectFrom(USERS).where(USERS.ID.eq(DSL.param(Integer.class))),
+                                   keepStatement);
+  }
+
+  @Test
+  public void rendersOnceAndBindsOnEveryExecution() throws Exception {
+    createService(new JooqPersistModule());
+    PreparedQuery query = userById(preparedQueries, false);
+    persistService.begin();
+    try {
+      assertEquals("user1", query.fetchOne(1).get(USERS.NAME));
+      Record user = query.fetchOne(2);
+      assertEquals("user2", user.into(USERS).get(USERS.NAME));
+    } finally {
+      persistService.end();
+    }
+
+    assertEquals(1, preparedQueries.getMisses());
+    assertEquals(1, preparedQueries.getHits());
+    assertEquals(Arrays.asList(Arrays.<Object>asList(1), Arrays.<Object>asList(2)), bindings);
+    assertEquals(statements.get(0), statements.get(1));
+    assertEquals(2, prepared.size());
+    verify(prepared.get(0)).close();
+    verify(prepared.get(1)).close();
+  }
+
+  @Test
+  public void keepsTheStatementUntilTheUnitOfWorkEnds() throws Exception {
+    createService(new JooqPersistModule());
+    PreparedQuery query = userById(preparedQueries, true);
+    persistService.begin();
+    try {
+      query.fetch(1);
+      query.fetch(2);
+      assertEquals(1, prepared.size());
+      verify(prepared.get(0), never()).close();
+    } finally {
+      persistService.end();
+    }
+    verify(prepared.get(0)).close();
+    assertEquals(2, statements.size());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedShapes() throws Exception {
+    createService(new JooqPersistModule().preparedQueryCache(1));
+    PreparedQuery first = userById(preparedQueries, false);
+    PreparedQuery second = userById(preparedQueries, false);
+    persistService.begin();
+    try {
+      first.fetch(1);
+      second.fetch(2);
+      first.fetch(3);
+    } finally {
+      persistService.end();
+    }
+    assertEquals(1, preparedQueries.size());
+    assertEquals(3, preparedQueries.getMisses());
+  }
+
+  @Test
+  public void bindsThroughTheBindingOfTheDataType() throws Exception {
+    createService(new JooqPersistModule());
+    DataType<Status> status = SQLDataType.VARCHAR.asEnumDataType(Status.class);
+    PreparedQuery query = preparedQueries.prepare(
+        dsl -> dsl.selectFrom(USERS).where(DSL.field("status", status).eq(DSL.param("status", status))));
+    persistService.begin();
+    try {
+      query.fetch(Status.ACTIVE);
+      query.fetch((Object) null);
+    } finally {
+      persistService.end();
+    }
+    assertEquals(Arrays.asList(Arrays.<Object>asList("active"), Arrays.asList((Object) null)), bindings);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTheWrongNumberOfValues() throws Exception {
+    createService(new JooqPersistModule());
+    persistService.begin();
+    try {
+      userById(preparedQueries, false).fetch(1, 2);
+    } finally {
+      persistService.end();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void requiresAUnitOfWork() throws Exception {
+    createService(new JooqPersistModule());
+    userById(preparedQueries, false).fetch(1);
+  }
+
+  private enum Status implements EnumType {
+    ACTIVE("active");
+
+    private final String literal;
+
+    Status(final String literal) {
+      this.literal = literal;
+    }
+
+    @Override
+    public String getLiteral() {
+      return literal;
+    }
+
+    @Override
+    public String getName() {
+      return "status";
+    }
+
+    @Override
+    public Schema getSchema() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.adamlewis.guice.persist.jooq.utils.Users.UserRecord;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import javax.sql.DataSource;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Result;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class QueryStreamsTest {
+  private JooqPersistService persistService;
+  private QueryStreams queryStreams;
+  private Connection connection;
+  private boolean failing;
+
+  @Before
+  public void setUp() throws SQLException {
+    Injector injector = Guice.createInjector(new JooqPersistModule(), new DataSourceModule());
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    connection = spy(new MockConnection(context -> {
+      if (failing) {
+        throw new SQLException("broken");
+      }
+      DSLContext create = DSL.using(DataSourceModule.DEFAULT_DIALECT);
+      Result<UserRecord> result = create.newResult(USERS);
+      for (int id = 1; id <= 3; id++) {
+        result.add(create.newRecord(USERS, new Object[]{id, "user" + id}));
+      }
+      return new MockResult[]{new MockResult(3, result)};
+    }));
+    when(dataSource.getConnection()).thenReturn(connection);
+    persistService = injector.getInstance(JooqPersistService.class);
+    queryStreams = injector.getInstance(QueryStreams.class);
+  }
+
+  @Test
+  public void streamsOutsideOfUnitOfWork() throws Exception {
+    try (Stream<UserRecord> users = queryStreams.stream(dsl -> dsl.selectFrom(USERS))) {
+      assertEquals(3, users.count());
+      assertFalse(persistService.isWorking());
+    }
+  }
+
+  @Test
+  public void readsInTransactionAndRollsBackOnClose() throws Exception {
+    try (Stream<UserRecord> users = queryStreams.stream(10, dsl -> dsl.selectFrom(USERS))) {
+      verify(connection).setReadOnly(true);
+      verify(connection).setAutoCommit(false);
+      verify(connection, never()).close();
+      assertEquals("user1", users.findFirst().get().get(USERS.NAME));
+    }
+    verify(connection).rollback();
+    verify(connection).close();
+  }
+
+  @Test
+  public void outlivesUnitOfWorkItWasCreatedIn() throws Exception {
+    persistService.begin();
+    Cursor<UserRecord> cursor = queryStreams.cursor(dsl -> dsl.selectFrom(USERS));
+    persistService.end();
+    // the unit of work returned its own connection, the stream keeps another one
+    verify(connection, times(1)).close();
+
+    assertEquals("user1", cursor.fetchNext().get(USERS.NAME));
+    cursor.close();
+    verify(connection, times(2)).close();
+  }
+
+  @Test
+  public void endsWhenExhaustedOnAnotherThread() throws Exception {
+    Cursor<UserRecord> cursor = queryStreams.cursor(dsl -> dsl.selectFrom(USERS));
+    Thread reader = new Thread(() -> {
+      for (Iterator<UserRecord> it = cursor.iterator(); it.hasNext(); ) {
+        it.next();
+      }
+    });
+    reader.start();
+    reader.join();
+
+    assertTrue(cursor.isClosed());
+    verify(connection).close();
+  }
+
+  @Test
+  public void releasesConnectionWhenQueryFails() throws Exception {
+    failing = true;
+    try {
+      queryStreams.stream(dsl -> dsl.selectFrom(USERS));
+      fail();
+    } catch (DataAccessException expected) {
+      verify(connection).close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveFetchSize() {
+    queryStreams.stream(0, dsl -> dsl.selectFrom(USERS));
+  }
+}
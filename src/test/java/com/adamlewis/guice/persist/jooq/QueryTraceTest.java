@@ -0,0 +1,101 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Test;
+
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class QueryTraceTest {
+  private final List<QueryTrace> traces = new ArrayList<QueryTrace>();
+  private JooqPersistService persistService;
+
+  @Test
+  public void normalizesLiteralsAndBindLists() {
+    assertEquals("select * from t1 where a = ? and b in (?, ...) and c = ?",
+                 QueryTrace.normalize("select * from t1 where a = 42 and b in (?, ?, ?) and c = 'it''s'"));
+  }
+
+  @Test
+  public void reportsRepeatedQueries() throws Exception {
+    DSLContext dsl = givenTracedUnitOfWork();
+    for (int id = 0; id < 5; id++) {
+      dsl.update(USERS).set(USERS.NAME, "user").where(USERS.ID.eq(id)).execute();
+    }
+    dsl.deleteFrom(USERS).where(USERS.ID.in(1, 2, 3)).execute();
+    persistService.end();
+
+    assertEquals(1, traces.size());
+    QueryTrace trace = traces.get(0);
+    assertNull(trace.getMethod());
+    assertEquals(6, trace.getStatements());
+    assertEquals(2, trace.getShapes().size());
+    assertEquals(1, trace.getRepeatedShapes().size());
+    QueryTrace.Shape repeated = trace.getRepeatedShapes().get(0);
+    assertEquals(5, repeated.getExecutions());
+    assertEquals(2, repeated.getBindMarkers());
+  }
+
+  @Test
+  public void reportsNothingBelowThresholds() throws Exception {
+    DSLContext dsl = givenTracedUnitOfWork();
+    dsl.update(USERS).set(USERS.NAME, "user").where(USERS.ID.eq(1)).execute();
+    dsl.update(USERS).set(USERS.NAME, "user").where(USERS.ID.eq(2)).execute();
+    persistService.end();
+
+    assertTrue(traces.isEmpty());
+  }
+
+  @Test
+  public void failingListenerDoesNotHideTheFailureToEnd() throws Exception {
+    Connection connection = spy(new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+    doThrow(new SQLException("close failed")).when(connection).close();
+    DSLContext dsl = givenTracedUnitOfWork(trace -> {
+      throw new IllegalStateException("listener failed");
+    }, connection);
+    for (int id = 0; id < 3; id++) {
+      dsl.update(USERS).set(USERS.NAME, "user").where(USERS.ID.eq(id)).execute();
+    }
+
+    try {
+      persistService.end();
+      fail();
+    } catch (DataAccessException e) {
+      assertEquals("close failed", e.getCause().getMessage());
+    }
+  }
+
+  private DSLContext givenTracedUnitOfWork() throws SQLException {
+    return givenTracedUnitOfWork(traces::add, new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+  }
+
+  private DSLContext givenTracedUnitOfWork(final QueryTraceListener listener, final Connection connection)
+      throws SQLException {
+    Injector injector = Guice.createInjector(new JooqPersistModule().traceQueries(1, 3, 100), new DataSourceModule(),
+                                             new AbstractModule() {
+                                               @Override
+                                               protected void configure() {
+                                                 bind(QueryTraceListener.class).toInstance(listener);
+                                               }
+                                             });
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    persistService = injector.getInstance(JooqPersistService.class);
+    persistService.begin();
+    return persistService.get();
+  }
+}
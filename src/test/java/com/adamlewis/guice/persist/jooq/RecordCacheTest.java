@@ -0,0 +1,111 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.adamlewis.guice.persist.jooq.utils.Injectors;
+import com.adamlewis.guice.persist.jooq.utils.Users.UserRecord;
+import com.google.inject.Injector;
+import org.jooq.DSLContext;
+import org.jooq.Result;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.After;
+import org.junit.Test;
+
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
+import static org.junit.Assert.*;
+
+public class RecordCacheTest {
+  private final AtomicInteger queries = new AtomicInteger();
+  private JooqPersistService persistService;
+  private RecordCache recordCache;
+
+  @After
+  public void tearDown() {
+    persistService.end();
+  }
+
+  @Test
+  public void loadsRecordOnce() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().recordCache());
+
+    UserRecord user = recordCache.fetchById(USERS, 1);
+
+    assertEquals("user 1", user.get(USERS.NAME));
+    assertSame(user, recordCache.fetchById(USERS, 1L));
+    assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void cachesRecordsLoadedByQueries() throws Exception {
+    DSLContext dsl = givenUnitOfWork(new JooqPersistModule().recordCache());
+
+    dsl.selectFrom(USERS).fetch();
+
+    assertNotNull(recordCache.get(USERS, 1));
+    assertNotNull(recordCache.fetchById(USERS, 1));
+    assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void modifyingTableInvalidatesItsRecords() throws Exception {
+    DSLContext dsl = givenUnitOfWork(new JooqPersistModule().recordCache());
+    recordCache.fetchById(USERS, 1);
+
+    dsl.update(USERS).set(USERS.NAME, "renamed").execute();
+
+    assertNull(recordCache.get(USERS, 1));
+  }
+
+  @Test
+  public void modifyingOtherTableKeepsRecords() throws Exception {
+    DSLContext dsl = givenUnitOfWork(new JooqPersistModule().recordCache());
+    recordCache.fetchById(USERS, 1);
+
+    dsl.deleteFrom(DSL.table(DSL.name("orders"))).execute();
+
+    assertNotNull(recordCache.get(USERS, 1));
+  }
+
+  @Test
+  public void plainSqlInvalidatesAllRecords() throws Exception {
+    DSLContext dsl = givenUnitOfWork(new JooqPersistModule().recordCache());
+    recordCache.fetchById(USERS, 1);
+
+    dsl.execute("delete from orders");
+
+    assertNull(recordCache.get(USERS, 1));
+  }
+
+  @Test
+  public void cachesNothingUnlessEnabled() throws Exception {
+    givenUnitOfWork(new JooqPersistModule());
+
+    recordCache.fetchById(USERS, 1);
+    recordCache.fetchById(USERS, 1);
+
+    assertEquals(2, queries.get());
+  }
+
+  private DSLContext givenUnitOfWork(final JooqPersistModule module) throws SQLException {
+    Injector injector = Injectors.withConnections(() -> new MockConnection(context -> {
+      queries.incrementAndGet();
+      if (!context.sql().startsWith("select")) {
+        return new MockResult[]{new MockResult(1)};
+      }
+      Result<UserRecord> result = DSL.using(DataSourceModule.DEFAULT_DIALECT).newResult(USERS);
+      UserRecord user = new UserRecord();
+      user.set(USERS.ID, 1);
+      user.set(USERS.NAME, "user 1");
+      result.add(user);
+      return new MockResult[]{new MockResult(1, result)};
+    }), module);
+    persistService = injector.getInstance(JooqPersistService.class);
+    recordCache = injector.getInstance(RecordCache.class);
+    persistService.begin();
+    return persistService.get();
+  }
+}
@@ -0,0 +1,201 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.adamlewis.guice.persist.jooq.utils.Injectors;
+import com.adamlewis.guice.persist.jooq.utils.Users.UserRecord;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import org.jooq.DSLContext;
+import org.jooq.Result;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.After;
+import org.junit.Test;
+
+import static com.adamlewis.guice.persist.jooq.utils.Users.USERS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ResultCacheTest {
+  private final AtomicInteger queries = new AtomicInteger();
+  private JooqPersistService persistService;
+  private ResultCache resultCache;
+  private DSLContext dsl;
+
+  @After
+  public void tearDown() {
+    persistService.end();
+  }
+
+  @Test
+  public void servesRepeatedQueryFromCache() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+
+    Result<UserRecord> first = resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(1)));
+    Result<UserRecord> second = resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(1)));
+
+    assertSame(first, second);
+    assertEquals(1, queries.get());
+    assertEquals(1, resultCache.getHits());
+    assertEquals(1, resultCache.getMisses());
+  }
+
+  @Test
+  public void cachesByBindValues() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+
+    resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(1)));
+    resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(2)));
+
+    assertEquals(2, queries.get());
+  }
+
+  @Test
+  public void invalidatesOnlyAfterCommit() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+    resultCache.fetch(dsl.selectFrom(USERS));
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    conn.setAutoCommit(false);
+
+    dsl.update(USERS).set(USERS.NAME, "renamed").execute();
+    // the transaction reads its own writes, everyone else still reads the cache
+    resultCache.fetch(dsl.selectFrom(USERS));
+    assertEquals(3, queries.get());
+    assertEquals(0, resultCache.getHits());
+
+    conn.commit();
+    conn.setAutoCommit(true);
+    resultCache.fetch(dsl.selectFrom(USERS));
+    assertEquals(4, queries.get());
+  }
+
+  @Test
+  public void cachesNothingReadInTransaction() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    conn.setAutoCommit(false);
+    resultCache.fetch(dsl.selectFrom(USERS));
+    conn.commit();
+    conn.setAutoCommit(true);
+
+    resultCache.fetch(dsl.selectFrom(USERS));
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(2, queries.get());
+    assertEquals(1, resultCache.getHits());
+    assertEquals(2, resultCache.getMisses());
+  }
+
+  @Test
+  public void rollbackKeepsCachedResults() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+    resultCache.fetch(dsl.selectFrom(USERS));
+    UnitOfWorkConnectionProvider conn = persistService.getConnectionWrapper();
+    conn.setAutoCommit(false);
+
+    dsl.update(USERS).set(USERS.NAME, "renamed").execute();
+    conn.rollback();
+    conn.setAutoCommit(true);
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(2, queries.get());
+    assertEquals(1, resultCache.getHits());
+  }
+
+  @Test
+  public void modifyingOtherTableKeepsCachedResults() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    dsl.deleteFrom(DSL.table(DSL.name("orders"))).execute();
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(1, resultCache.getHits());
+  }
+
+  @Test
+  public void plainSqlInvalidatesAllResults() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES));
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    dsl.execute("delete from orders");
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(0, resultCache.getHits());
+  }
+
+  @Test
+  public void expiresResults() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.NANOSECONDS));
+
+    resultCache.fetch(dsl.selectFrom(USERS));
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(2, queries.get());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    givenUnitOfWork(new JooqPersistModule().resultCache(1, 1, TimeUnit.MINUTES));
+
+    resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(1)));
+    resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(2)));
+    resultCache.fetch(dsl.selectFrom(USERS).where(USERS.ID.eq(1)));
+
+    assertEquals(1, resultCache.size());
+    assertEquals(3, queries.get());
+  }
+
+  @Test
+  public void cachesNothingUnlessInstalled() throws Exception {
+    givenUnitOfWork(new JooqPersistModule());
+
+    resultCache.fetch(dsl.selectFrom(USERS));
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(2, queries.get());
+  }
+
+  @Test
+  public void cachesByTenant() throws Exception {
+    AtomicReference<String> tenant = new AtomicReference<String>("a");
+    givenUnitOfWork(new JooqPersistModule().resultCache(100, 1, TimeUnit.MINUTES).tenantSearchPath(),
+                    binder -> binder.bind(TenantResolver.class).toInstance(tenant::get));
+    resultCache.fetch(dsl.selectFrom(USERS));
+    persistService.end();
+
+    tenant.set("b");
+    persistService.begin();
+    resultCache.fetch(dsl.selectFrom(USERS));
+
+    assertEquals(2, queries.get());
+    assertEquals(0, resultCache.getHits());
+  }
+
+  private void givenUnitOfWork(final Module... modules) throws SQLException {
+    Injector injector = Injectors.withConnections(() -> {
+      Connection connection = spy(new MockConnection(context -> {
+        queries.incrementAndGet();
+        if (!context.sql().startsWith("select")) {
+          return new MockResult[]{new MockResult(1)};
+        }
+        Result<UserRecord> result = DSL.using(DataSourceModule.DEFAULT_DIALECT).newResult(USERS);
+        return new MockResult[]{new MockResult(0, result)};
+      }));
+      doReturn("main").when(connection).getSchema();
+      doNothing().when(connection).setSchema(anyString());
+      return connection;
+    }, modules);
+    persistService = injector.getInstance(JooqPersistService.class);
+    resultCache = injector.getInstance(ResultCache.class);
+    persistService.begin();
+    dsl = persistService.get();
+  }
+}
@@ -0,0 +1,210 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.sql.Connection;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.persist.Transactional;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ShardRouterTest {
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target({ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD})
+  public @interface Even {
+  }
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target({ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD})
+  public @interface Odd {
+  }
+
+  public static class Shards extends ShardRouter<Long> {
+    @Override
+    protected Class<? extends Annotation> route(final Long key) {
+      return key % 2 == 0 ? Even.class : Odd.class;
+    }
+  }
+
+  public static class EvenDao {
+    @Inject
+    @Even
+    Provider<DSLContext> dsl;
+
+    @Transactional
+    @PersistenceUnit(Even.class)
+    public void write() {
+      dsl.get().execute("update t set x = 1");
+    }
+
+    @Transactional
+    public void unqualified() {
+    }
+  }
+
+  public static class RoutedDao {
+    @Inject
+    @ShardRouter.Routed
+    Provider<DSLContext> dsl;
+
+    @Transactional
+    @PersistenceUnit(ShardRouter.Routed.class)
+    public void write() {
+      dsl.get().execute("update t set x = 1");
+    }
+  }
+
+  private final DataSource evenSource = mock(DataSource.class);
+  private final DataSource oddSource = mock(DataSource.class);
+  private final Connection evenConnection = spy(new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+  private final Connection oddConnection = spy(new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+  private Injector injector;
+  private Shards shards;
+
+  @Before
+  public void setUp() throws Exception {
+    when(evenSource.getConnection()).thenReturn(evenConnection);
+    when(oddSource.getConnection()).thenReturn(oddConnection);
+    injector = Guice.createInjector(
+        new JooqPersistModule().lazyConnections().annotatedWith(Even.class),
+        new JooqPersistModule().lazyConnections().annotatedWith(Odd.class),
+        new AbstractModule() {
+          @Override
+          protected void configure() {
+            bind(DataSource.class).annotatedWith(Even.class).toInstance(evenSource);
+            bind(DataSource.class).annotatedWith(Odd.class).toInstance(oddSource);
+            bind(SQLDialect.class).annotatedWith(Even.class).toInstance(SQLDialect.SQLITE);
+            bind(SQLDialect.class).annotatedWith(Odd.class).toInstance(SQLDialect.SQLITE);
+          }
+        });
+    shards = injector.getInstance(Shards.class);
+  }
+
+  @Test
+  public void routesUnitOfWorkByKey() throws Exception {
+    int updated = shards.inUnitOfWork(4L, () -> shards.get().execute("update t set x = 1"));
+
+    assertEquals(1, updated);
+    verify(evenSource).getConnection();
+    verify(oddSource, never()).getConnection();
+  }
+
+  @Test
+  public void transactionalMethodsRunInTheirUnit() throws Exception {
+    injector.getInstance(EvenDao.class).write();
+
+    verify(evenConnection).setAutoCommit(false);
+    verify(evenConnection).commit();
+    verify(oddSource, never()).getConnection();
+  }
+
+  @Test
+  public void transactionalMethodsJoinRoutedUnitOfWork() throws Exception {
+    shards.begin(2L);
+    try {
+      injector.getInstance(EvenDao.class).write();
+      // the method's transaction ended, the routed unit of work goes on
+      assertTrue(injector.getInstance(Key.get(JooqPersistService.class, Even.class)).isWorking());
+    } finally {
+      shards.end();
+    }
+
+    verify(evenSource, times(1)).getConnection();
+  }
+
+  @Test
+  public void routedMethodsRunInTheRoutedUnit() throws Exception {
+    RoutedDao dao = injector.getInstance(RoutedDao.class);
+
+    shards.inUnitOfWork(3L, () -> {
+      dao.write();
+      return null;
+    });
+
+    verify(oddConnection).commit();
+    verify(evenSource, never()).getConnection();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void routedMethodsNeedARoutedUnitOfWork() {
+    injector.getInstance(RoutedDao.class).write();
+  }
+
+  @Test
+  public void qualifiedUnitsProvideEveryComponent() {
+    for (Class<?> type : new Class<?>[]{RecordCache.class, ResultCache.class, BulkLoader.class, ParallelQueries.class,
+                                        QueryStreams.class, PreparedQueries.class}) {
+      assertNotSame(injector.getInstance(Key.get(type, Even.class)), injector.getInstance(Key.get(type, Odd.class)));
+    }
+  }
+
+  @Test
+  public void qualifiedUnitsLeaveOtherMethodsAlone() throws Exception {
+    injector.getInstance(EvenDao.class).unqualified();
+
+    verify(evenSource, never()).getConnection();
+    verify(oddSource, never()).getConnection();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void allowsOneRoutedUnitOfWorkPerThread() {
+    shards.begin(1L);
+    try {
+      shards.begin(2L);
+    } finally {
+      shards.end();
+    }
+  }
+
+  @Test
+  public void qualifiedUnitsCoexistWithTheDefaultUnit() throws Exception {
+    DataSource defaultSource = mock(DataSource.class);
+    when(defaultSource.getConnection()).thenReturn(new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+    Injector injector = Guice.createInjector(
+        new JooqPersistModule(),
+        new JooqPersistModule().annotatedWith(Even.class),
+        new AbstractModule() {
+          @Override
+          protected void configure() {
+            bind(DataSource.class).toInstance(defaultSource);
+            bind(SQLDialect.class).toInstance(SQLDialect.SQLITE);
+            bind(DataSource.class).annotatedWith(Even.class).toInstance(evenSource);
+            bind(SQLDialect.class).annotatedWith(Even.class).toInstance(SQLDialect.SQLITE);
+          }
+        });
+
+    injector.getInstance(EvenDao.class).write();
+    verify(evenConnection).commit();
+    verify(defaultSource, never()).getConnection();
+
+    JooqPersistService defaultService = injector.getInstance(JooqPersistService.class);
+    assertNotSame(defaultService, injector.getInstance(Key.get(JooqPersistService.class, Even.class)));
+    defaultService.begin();
+    try {
+      defaultService.get().execute("update t set x = 1");
+    } finally {
+      defaultService.end();
+    }
+    verify(defaultSource).getConnection();
+  }
+}
@@ -0,0 +1,160 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.ProvisionException;
+import com.google.inject.util.Modules;
+import javax.sql.DataSource;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
+import org.jooq.impl.SchemaImpl;
+import org.jooq.impl.TableImpl;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TenantConfigurationsTest {
+  private static final Table<Record> ACCOUNTS = new TableImpl<Record>(DSL.name("accounts"),
+                                                                       new SchemaImpl(DSL.name("app")));
+
+  private final List<String> statements = new ArrayList<String>();
+  private String tenant;
+  private Connection connection;
+  private JooqPersistService persistService;
+
+  private void createService(final JooqPersistModule module, final Module... modules) throws SQLException {
+    Injector injector = Guice.createInjector(module, new DataSourceModule(), Modules.combine(modules),
+                                             new AbstractModule() {
+                                               @Override
+                                               protected void configure() {
+                                                 bind(TenantResolver.class).toInstance(() -> tenant);
+                                               }
+                                             });
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    when(dataSource.getConnection()).thenAnswer(invocation -> {
+      // a pool of a single connection
+      if (null != connection) {
+        return connection;
+      }
+      connection = spy(new MockConnection(context -> {
+        statements.add(context.sql());
+        if (context.sql().startsWith("show search_path")) {
+          Field<String> searchPath = DSL.field("search_path", String.class);
+          DSLContext create = DSL.using(DataSourceModule.DEFAULT_DIALECT);
+          Result<Record1<String>> result = create.newResult(searchPath);
+          result.add(create.newRecord(searchPath).values("\"$user\", public"));
+          return new MockResult[]{new MockResult(1, result)};
+        }
+        return new MockResult[]{new MockResult(0, DSL.using(DataSourceModule.DEFAULT_DIALECT).newResult())};
+      }));
+      doReturn("public").when(connection).getSchema();
+      doNothing().when(connection).setSchema(anyString());
+      doNothing().when(connection).close();
+      return connection;
+    });
+    persistService = injector.getInstance(JooqPersistService.class);
+  }
+
+  private DSLContext selectInUnitOfWork() {
+    persistService.begin();
+    try {
+      DSLContext dsl = persistService.get();
+      dsl.selectFrom(ACCOUNTS).fetch();
+      return dsl;
+    } finally {
+      persistService.end();
+    }
+  }
+
+  @Test
+  public void rendersTheSchemaOfTheTenant() throws Exception {
+    createService(new JooqPersistModule().tenantSchemas("app", 10));
+    tenant = "tenant_a";
+    selectInUnitOfWork();
+    tenant = null;
+    selectInUnitOfWork();
+
+    assertTrue(statements.get(0), statements.get(0).contains("from tenant_a.accounts"));
+    assertTrue(statements.get(1), statements.get(1).contains("from app.accounts"));
+    verify(connection, never()).setSchema(anyString());
+  }
+
+  @Test
+  public void keepsTheContextsOfRecentTenants() throws Exception {
+    createService(new JooqPersistModule().tenantSchemas("app", 2));
+    tenant = "a";
+    DSLContext first = selectInUnitOfWork();
+    assertSame(first, selectInUnitOfWork());
+
+    tenant = "b";
+    assertNotSame(first, selectInUnitOfWork());
+    tenant = "c";
+    selectInUnitOfWork();
+    tenant = "a";
+    assertNotSame(first, selectInUnitOfWork());
+    assertTrue(statements.get(4), statements.get(4).contains("from a.accounts"));
+  }
+
+  @Test
+  public void switchesTheSchemaOfTheConnectionOnlyWhenTheTenantChanges() throws Exception {
+    createService(new JooqPersistModule().tenantSearchPath());
+    tenant = "tenant_a";
+    selectInUnitOfWork();
+    selectInUnitOfWork();
+    tenant = null;
+    selectInUnitOfWork();
+
+    InOrder inOrder = inOrder(connection);
+    inOrder.verify(connection).setSchema("tenant_a");
+    inOrder.verify(connection, calls(2)).close();
+    inOrder.verify(connection).setSchema("public");
+    verify(connection, times(1)).getSchema();
+    verify(connection, times(2)).setSchema(anyString());
+    assertTrue(statements.get(0), statements.get(0).contains("from app.accounts"));
+  }
+
+  @Test
+  public void restoresTheWholeSearchPathOnPostgres() throws Exception {
+    createService(new JooqPersistModule().tenantSearchPath(), new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Configuration.class).toInstance(new DefaultConfiguration().set(SQLDialect.POSTGRES));
+      }
+    });
+    tenant = "tenant_a";
+    selectInUnitOfWork();
+    tenant = null;
+    selectInUnitOfWork();
+
+    verify(connection).setSchema("tenant_a");
+    verify(connection, never()).setSchema("public");
+    assertEquals("show search_path", statements.get(0));
+    assertEquals("set search_path to \"$user\", public", statements.get(2));
+  }
+
+  @Test(expected = ProvisionException.class)
+  public void requiresATenantResolver() {
+    Guice.createInjector(new JooqPersistModule().tenantSearchPath(), new DataSourceModule())
+        .getInstance(JooqPersistService.class);
+  }
+}
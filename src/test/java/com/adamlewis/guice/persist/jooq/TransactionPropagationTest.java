@@ -0,0 +1,151 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import javax.sql.DataSource;
+import org.jooq.ConnectionProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TransactionPropagationTest {
+  private JooqPersistService jooqPersistService;
+  private TransactionPropagation propagation;
+  private DataSource dataSource;
+  private Connection connection;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    Injector injector = Guice.createInjector(new JooqPersistModule(), new DataSourceModule());
+    jooqPersistService = injector.getInstance(JooqPersistService.class);
+    propagation = injector.getInstance(TransactionPropagation.class);
+    dataSource = injector.getInstance(DataSource.class);
+    connection = mock(Connection.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    jooqPersistService.end();
+  }
+
+  @Test
+  public void wrappedTaskUsesUnitOfWorkOfSubmitter() throws Exception {
+    jooqPersistService.begin();
+
+    Connection used = propagation.wrap(executor).submit(() -> {
+      ConnectionProvider provider = jooqPersistService.get().configuration().connectionProvider();
+      Connection acquired = provider.acquire();
+      provider.release(acquired);
+      return acquired;
+    }).get();
+
+    assertSame(connection, used);
+    verify(dataSource, times(1)).getConnection();
+  }
+
+  @Test
+  public void wrappedTaskIsDetachedAfterwards() throws Exception {
+    jooqPersistService.begin();
+    propagation.wrap(executor).submit(() -> { }).get();
+
+    assertFalse(executor.submit(() -> jooqPersistService.isWorking()).get());
+  }
+
+  @Test
+  public void taskSubmittedOutsideUnitOfWorkRunsWithout() throws Exception {
+    assertFalse(propagation.wrap(executor).submit(() -> jooqPersistService.isWorking()).get());
+  }
+
+  @Test
+  public void connectionIsNotSharedConcurrently() throws Exception {
+    jooqPersistService.begin();
+    ConnectionProvider provider = jooqPersistService.get().configuration().connectionProvider();
+    Connection held = provider.acquire();
+
+    try {
+      propagation.wrap(executor).submit(() -> provider.acquire()).get();
+      fail("exception expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    } finally {
+      provider.release(held);
+    }
+
+    assertSame(connection, propagation.wrap(executor).submit(() -> {
+      Connection acquired = provider.acquire();
+      provider.release(acquired);
+      return acquired;
+    }).get());
+  }
+
+  @Test
+  public void endingWhileAnotherThreadHoldsTheConnectionStillReturnsIt() throws Exception {
+    jooqPersistService.begin();
+    UnitOfWorkConnectionProvider conn = jooqPersistService.getConnectionWrapper();
+    CountDownLatch acquired = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    Future<?> holder = propagation.wrap(executor).submit(() -> {
+      Connection held = conn.acquire();
+      acquired.countDown();
+      done.await();
+      conn.release(held);
+      return null;
+    });
+    acquired.await();
+
+    try {
+      conn.setAutoCommit(false);
+      fail("exception expected");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      jooqPersistService.end();
+      fail("exception expected");
+    } catch (IllegalStateException expected) {
+    } finally {
+      done.countDown();
+    }
+    holder.get();
+    verify(connection).close();
+    verify(connection, never()).setAutoCommit(false);
+    assertFalse(jooqPersistService.isWorking());
+  }
+
+  @Test
+  public void attachedThreadDoesNotEndUnitOfWork() throws Exception {
+    jooqPersistService.begin();
+    TransactionContext context = propagation.capture();
+
+    executor.submit(() -> {
+      TransactionContext.Scope scope = context.attach();
+      try {
+        jooqPersistService.end();
+      } finally {
+        scope.close();
+      }
+    }).get();
+
+    assertTrue(jooqPersistService.isWorking());
+    verify(connection, never()).close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cannotCaptureOutsideUnitOfWork() {
+    propagation.capture();
+  }
+}
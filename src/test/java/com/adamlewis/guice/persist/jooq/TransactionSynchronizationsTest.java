@@ -0,0 +1,221 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.persist.PersistService;
+import com.google.inject.persist.Transactional;
+import com.google.inject.persist.UnitOfWork;
+import com.google.inject.util.Modules;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TransactionSynchronizationsTest {
+  public static class Dao {
+    @Inject
+    Provider<DSLContext> dsl;
+    @Inject
+    TransactionSynchronizations synchronizations;
+
+    @Transactional
+    public void write(final TransactionSynchronization synchronization) {
+      synchronizations.register(synchronization);
+      dsl.get().execute("update t set x = 1");
+    }
+
+    @Transactional
+    public void writeAndFail(final TransactionSynchronization synchronization) {
+      write(synchronization);
+      throw new IllegalStateException("failed");
+    }
+
+    @Transactional
+    public void writeAsync(final Runnable callback) {
+      synchronizations.afterCommitAsync(callback);
+      dsl.get().execute("update t set x = 1");
+    }
+  }
+
+  private final List<String> events = new ArrayList<String>();
+  private Connection connection;
+  private Dao dao;
+  private TransactionSynchronizations synchronizations;
+
+  private Injector injector;
+
+  @Before
+  public void setUp() throws SQLException {
+    givenModule(new JooqPersistModule());
+  }
+
+  private void givenModule(final Module module) throws SQLException {
+    injector = Guice.createInjector(module, new DataSourceModule(), new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Dao.class);
+      }
+    });
+    DataSource dataSource = injector.getInstance(DataSource.class);
+    connection = spy(new MockConnection(context -> new MockResult[]{new MockResult(1)}));
+    doAnswer(invocation -> events.add("close")).when(connection).close();
+    when(dataSource.getConnection()).thenReturn(connection);
+    dao = injector.getInstance(Dao.class);
+    synchronizations = injector.getInstance(TransactionSynchronizations.class);
+  }
+
+  private TransactionSynchronization recording(final String name) {
+    return new TransactionSynchronization() {
+      @Override
+      public void beforeCommit() {
+        events.add(name + ":beforeCommit");
+      }
+
+      @Override
+      public void afterCommit() {
+        events.add(name + ":afterCommit");
+      }
+
+      @Override
+      public void afterRollback() {
+        events.add(name + ":afterRollback");
+      }
+    };
+  }
+
+  @Test
+  public void runsAfterCommitOnceTheConnectionIsReturned() throws Exception {
+    dao.write(recording("a"));
+    InOrder inOrder = inOrder(connection);
+    inOrder.verify(connection).commit();
+    inOrder.verify(connection).close();
+    assertEquals(Arrays.asList("a:beforeCommit", "close", "a:afterCommit"), events);
+  }
+
+  @Test
+  public void runsAfterRollbackOnFailure() throws Exception {
+    try {
+      dao.writeAndFail(recording("a"));
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    verify(connection).rollback();
+    verify(connection, never()).commit();
+    assertEquals(Arrays.asList("close", "a:afterRollback"), events);
+  }
+
+  @Test
+  public void failedBeforeCommitRollsBack() throws Exception {
+    try {
+      dao.write(new TransactionSynchronization() {
+        @Override
+        public void beforeCommit() {
+          throw new IllegalArgumentException("veto");
+        }
+
+        @Override
+        public void afterRollback() {
+          events.add("afterRollback");
+        }
+      });
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    verify(connection, never()).commit();
+    verify(connection).rollback();
+    assertEquals(Arrays.asList("close", "afterRollback"), events);
+  }
+
+  @Test
+  public void failedCallbackDoesNotStopTheOthers() throws Exception {
+    dao.write(new TransactionSynchronization() {
+      @Override
+      public void afterCommit() {
+        throw new IllegalStateException("callback failed");
+      }
+    });
+    assertEquals(Arrays.asList("close"), events);
+
+    events.clear();
+    dao.write(recording("b"));
+    assertEquals(Arrays.asList("b:beforeCommit", "close", "b:afterCommit"), events);
+  }
+
+  @Test
+  public void runsAsyncCallbacksOnAnotherThread() throws Exception {
+    CountDownLatch ran = new CountDownLatch(1);
+    AtomicReference<Thread> thread = new AtomicReference<Thread>();
+    dao.writeAsync(() -> {
+      thread.set(Thread.currentThread());
+      ran.countDown();
+    });
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), thread.get());
+    verify(connection).close();
+  }
+
+  @Test
+  public void stopWaitsForAsyncCallbacksAndThenRunsThemOnTheCommittingThread() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicReference<Thread> thread = new AtomicReference<Thread>();
+    dao.writeAsync(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      events.add("async");
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    injector.getInstance(PersistService.class).stop();
+    assertEquals(Arrays.asList("close", "async"), events);
+
+    dao.writeAsync(() -> thread.set(Thread.currentThread()));
+    assertSame(Thread.currentThread(), thread.get());
+  }
+
+  @Test
+  public void runsCallbacksOnceWhenTheTraceListenerFails() throws Exception {
+    givenModule(Modules.override(new JooqPersistModule().traceQueries(1, 2, 1)).with(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(QueryTraceListener.class).toInstance(trace -> {
+          throw new IllegalStateException("listener failed");
+        });
+      }
+    }));
+    UnitOfWork unitOfWork = injector.getInstance(UnitOfWork.class);
+    unitOfWork.begin();
+    dao.write(recording("a"));
+    dao.write(recording("b"));
+    unitOfWork.end();
+
+    assertEquals(Arrays.asList("a:beforeCommit", "b:beforeCommit", "close", "a:afterCommit", "b:afterCommit"), events);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void requiresATransaction() {
+    synchronizations.afterCommit(() -> events.add("never"));
+  }
+}
@@ -0,0 +1,74 @@
+package com.adamlewis.guice.persist.jooq;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UnitOfWorkWatchdogTest {
+  private static final long THRESHOLD = TimeUnit.SECONDS.toNanos(1);
+
+  private HistogramMetricsListener metrics;
+  private UnitOfWorkWatchdog watchdog;
+  private Connection connection;
+  private UnitOfWorkConnectionProvider conn;
+
+  @Before
+  public void setUp() throws Exception {
+    metrics = new HistogramMetricsListener();
+    watchdog = new UnitOfWorkWatchdog(THRESHOLD, 0, metrics);
+    connection = mock(Connection.class);
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    conn = new UnitOfWorkConnectionProvider(dataSource);
+  }
+
+  @Test
+  public void reportsOverdueUnitOfWorkOnce() {
+    conn.open();
+    watchdog.register(conn);
+
+    watchdog.check(System.nanoTime());
+    assertEquals(0, metrics.getOverdueUnitsOfWork());
+
+    watchdog.check(System.nanoTime() + 2 * THRESHOLD);
+    watchdog.check(System.nanoTime() + 3 * THRESHOLD);
+    assertEquals(1, metrics.getOverdueUnitsOfWork());
+    assertEquals(1, watchdog.size());
+  }
+
+  @Test
+  public void forgetsEndedUnitOfWork() {
+    watchdog.register(conn);
+    watchdog.unregister(conn);
+
+    watchdog.check(System.nanoTime() + 2 * THRESHOLD);
+
+    assertEquals(0, metrics.getOverdueUnitsOfWork());
+    assertEquals(0, watchdog.size());
+  }
+
+  @Test
+  public void reclaimsUnitOfWorkOfDeadThread() throws Exception {
+    Thread thread = new Thread(() -> {
+      conn.acquire();
+      conn.setAutoCommit(false);
+      watchdog.register(conn);
+      // dies holding the connection, in a transaction
+    });
+    thread.start();
+    thread.join();
+
+    watchdog.check(System.nanoTime());
+
+    verify(connection).rollback();
+    verify(connection).close();
+    assertEquals(1, metrics.getReclaimedUnitsOfWork());
+    assertEquals(0, watchdog.size());
+  }
+}
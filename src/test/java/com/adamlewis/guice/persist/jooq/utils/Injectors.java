@@ -0,0 +1,30 @@
+package com.adamlewis.guice.persist.jooq.utils;
+
+import com.adamlewis.guice.persist.jooq.modules.DataSourceModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.util.Modules;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds an injector over the mock {@link DataSourceModule} whose data source hands out connections from the given
+ * factory.
+ */
+public class Injectors {
+  private Injectors() {
+  }
+
+  public static Injector withConnections(final Callable<? extends Connection> connections, final Module... modules)
+      throws SQLException {
+    Injector injector = Guice.createInjector(Modules.combine(modules), new DataSourceModule());
+    when(injector.getInstance(DataSource.class).getConnection()).thenAnswer(invocation -> connections.call());
+    return injector;
+  }
+}
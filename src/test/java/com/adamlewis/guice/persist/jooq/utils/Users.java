@@ -0,0 +1,46 @@
+package com.adamlewis.guice.persist.jooq.utils;
+
+import org.jooq.Name;
+import org.jooq.TableField;
+import org.jooq.UniqueKey;
+import org.jooq.impl.DSL;
+import org.jooq.impl.Internal;
+import org.jooq.impl.SQLDataType;
+import org.jooq.impl.TableImpl;
+import org.jooq.impl.UpdatableRecordImpl;
+
+/**
+ * Hand-written stand-in for a generated table with a primary key.
+ */
+public class Users extends TableImpl<Users.UserRecord> {
+  private static final long serialVersionUID = 1L;
+
+  public static final Users USERS = new Users(DSL.name("users"));
+
+  public final TableField<UserRecord, Integer> ID = createField(DSL.name("id"), SQLDataType.INTEGER.nullable(false));
+  public final TableField<UserRecord, String> NAME = createField(DSL.name("name"), SQLDataType.VARCHAR);
+
+  private Users(final Name name) {
+    super(name);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public UniqueKey<UserRecord> getPrimaryKey() {
+    TableField<UserRecord, ?>[] fields = (TableField<UserRecord, ?>[]) new TableField<?, ?>[]{ID};
+    return Internal.createUniqueKey(this, DSL.name("pk_users"), fields, true);
+  }
+
+  @Override
+  public Class<UserRecord> getRecordType() {
+    return UserRecord.class;
+  }
+
+  public static class UserRecord extends UpdatableRecordImpl<UserRecord> {
+    private static final long serialVersionUID = 1L;
+
+    public UserRecord() {
+      super(USERS);
+    }
+  }
+}